@@ -0,0 +1,335 @@
+package system;
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.*;
+import com.sun.net.httpserver.*;
+
+// EFS as a localhost HTTP API, one virtual thread per request and one EFSManager per logged in user
+//
+// POST   /login                   form body username=..&password=..  -> session token
+// POST   /logout
+// GET    /files                   list of the home directory
+// GET    /files/<path>.enc        plain text of the file
+// PUT    /files/<dir>/<name>      body is the plain text, stored as <dir>/<name>.enc
+// GET    /shared                  list of the files shared with the user
+// GET    /shared/<name>.enc       plain text, released only after the signature is verified
+// PUT    /shared/<name>?to=<user>[,<user>...]
+//                                 body is the plain text, encrypted once and shared with every user
+// POST   /dirs/<path>             create directory
+// DELETE /dirs/<path>             delete directory
+//
+// every request except login carries "Authorization: Bearer <token>". requests of one session run one
+// at a time (they share its EFSManager), requests of different sessions run in parallel
+public class EFSDaemon {
+	private static class Session {
+		private final EFSManager efsm;
+		// a lock rather than a monitor: a virtual thread blocked on I/O inside synchronized stays pinned
+		// to its carrier thread, which would cap concurrent sessions at the number of carriers
+		private final ReentrantLock lock = new ReentrantLock();
+		private volatile long lastUsed = System.currentTimeMillis();
+
+		private Session(EFSManager efsm) {
+			this.efsm = efsm;
+		}
+	}
+
+	// response body that sends the 200 headers on the first byte, so a failure before any output
+	// can still be answered with an error status
+	private static class ResponseStream extends OutputStream {
+		private final HttpExchange exchange;
+		private OutputStream body;
+
+		private ResponseStream(HttpExchange exchange) {
+			this.exchange = exchange;
+		}
+
+		private OutputStream body() throws IOException {
+			if(body == null) {
+				exchange.getResponseHeaders().set("Content-Type", "application/octet-stream");
+				exchange.sendResponseHeaders(200, 0);
+				body = exchange.getResponseBody();
+			}
+			return body;
+		}
+
+		private boolean isStarted() {
+			return body != null;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			body().write(b);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			body().write(b, off, len);
+		}
+	}
+
+	private interface SessionAction {
+		boolean run(EFSManager efsm, HttpExchange exchange, String path, ResponseStream out) throws Exception;
+	}
+
+	private final HttpServer server;
+	private final ConcurrentHashMap<String, Session> sessions = new ConcurrentHashMap<>();
+	private final SecureRandom random = new SecureRandom();
+	private final long sessionTimeout = EFSystem.pr.getLongProperty("DAEMON_SESSION_TIMEOUT", 30) * 60 * 1000;
+
+	public EFSDaemon(int port) throws IOException {
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		server.setExecutor(Executors.newVirtualThreadPerTaskExecutor());
+
+		server.createContext("/login", this::login);
+		server.createContext("/logout", exchange -> handle(exchange, "POST", this::logout));
+		server.createContext("/files", exchange -> handle(exchange, null, this::files));
+		server.createContext("/shared", exchange -> handle(exchange, null, this::shared));
+		server.createContext("/dirs", exchange -> handle(exchange, null, this::dirs));
+	}
+
+	public void start() {
+		server.start();
+	}
+
+	public void stop() {
+		server.stop(0);
+		for(Session session : sessions.values()) {
+			session.efsm.logout();
+		}
+		sessions.clear();
+	}
+
+	// -------------------------------------------------------------
+
+	private void login(HttpExchange exchange) throws IOException {
+		try(exchange) {
+			if(!"POST".equals(exchange.getRequestMethod())) {
+				send(exchange, 405, "Use POST.");
+				return;
+			}
+			Map<String, String> form = parseQuery(new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8));
+			String username = form.get("username");
+			String password = form.get("password");
+
+			User user = username != null ? EFSystem.EFSusers.get(username) : null;
+			if(user == null || password == null || !EFSystem.verifyPassword(username, password)) {
+				send(exchange, 401, "Invalid username or password.");
+				return;
+			}
+			String certificateProblem = EFSystem.checkCertificate(user);
+			if(certificateProblem != null) {
+				send(exchange, 403, certificateProblem);
+				return;
+			}
+
+			expireSessions();
+			byte[] token = new byte[32];
+			random.nextBytes(token);
+			String sessionToken = Base64.getUrlEncoder().withoutPadding().encodeToString(token);
+			sessions.put(sessionToken, new Session(new EFSManager(username)));
+			send(exchange, 200, sessionToken);
+		} catch(Exception e) {
+			send(exchange, 500, e.getMessage());
+		}
+	}
+
+	private boolean logout(EFSManager efsm, HttpExchange exchange, String path, ResponseStream out) {
+		String token = token(exchange);
+		Session session = token != null ? sessions.remove(token) : null;
+		if(session != null) {
+			session.efsm.logout();
+		}
+		return true;
+	}
+
+	private boolean files(EFSManager efsm, HttpExchange exchange, String path, ResponseStream out) throws Exception{
+		switch(exchange.getRequestMethod()) {
+		case "GET":
+			if(path.isEmpty()) {
+				writeList(out, efsm.listFiles(false));
+				return true;
+			}
+			return efsm.downloadFile(path, out);
+		case "PUT":
+			int separator = path.lastIndexOf('/');
+			String targetDir = separator == -1 ? "" : path.substring(0, separator);
+			return efsm.addFile(exchange.getRequestBody(), path.substring(separator + 1), targetDir);
+		default:
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	private boolean shared(EFSManager efsm, HttpExchange exchange, String path, ResponseStream out) throws Exception{
+		switch(exchange.getRequestMethod()) {
+		case "GET":
+			if(path.isEmpty()) {
+				writeList(out, efsm.listFiles(true));
+				return true;
+			}
+			// the signature covers the whole file, it's checked before anything is sent
+			Path tmpDir = Files.createTempDirectory("efs-shared");
+			try {
+				if(!efsm.downloadFileFromShared(path, tmpDir.toString())) {
+					return false;
+				}
+				Files.copy(tmpDir.resolve(Path.of(path).getFileName().toString().replace(".enc", "")), out);
+				return true;
+			} finally {
+				deleteRecursively(tmpDir);
+			}
+		case "PUT":
+			String recipient = parseQuery(exchange.getRequestURI().getRawQuery()).get("to");
+			if(recipient == null || path.isEmpty() || path.contains("/") || path.equals(".") || path.equals("..")) {
+				throw new IllegalArgumentException("Expected PUT /shared/<name>?to=<user>");
+			}
+			return efsm.addFileToShared(exchange.getRequestBody(), path, Arrays.asList(recipient.split(",")));
+		default:
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	private boolean dirs(EFSManager efsm, HttpExchange exchange, String path, ResponseStream out) throws Exception{
+		switch(exchange.getRequestMethod()) {
+		case "POST":
+			int separator = path.lastIndexOf('/');
+			efsm.createDirectory(separator == -1 ? "" : path.substring(0, separator), path.substring(separator + 1));
+			return true;
+		case "DELETE":
+			return efsm.deleteDirectory(path);
+		default:
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	// -------------------------------------------------------------
+
+	private void handle(HttpExchange exchange, String method, SessionAction action) throws IOException {
+		ResponseStream out = new ResponseStream(exchange);
+		boolean aborted = false;
+		try {
+			if(method != null && !method.equals(exchange.getRequestMethod())) {
+				send(exchange, 405, "Use " + method + ".");
+				return;
+			}
+
+			String token = token(exchange);
+			Session session = token != null ? sessions.get(token) : null;
+			if(session == null || expired(session)) {
+				if(session != null) {
+					sessions.remove(token);
+					session.efsm.logout();
+				}
+				send(exchange, 401, "Not logged in.");
+				return;
+			}
+			session.lastUsed = System.currentTimeMillis();
+
+			String context = exchange.getHttpContext().getPath();
+			String path = exchange.getRequestURI().getPath().substring(context.length());
+			path = path.startsWith("/") ? path.substring(1) : path;
+
+			// messages EFSManager prints become the body of an error response
+			ByteArrayOutputStream messages = new ByteArrayOutputStream();
+			boolean ok;
+			session.lock.lock();
+			try {
+				session.efsm.setConsole(new PrintStream(messages, true, StandardCharsets.UTF_8));
+				try {
+					ok = action.run(session.efsm, exchange, path, out);
+				} finally {
+					session.efsm.setConsole(System.out);
+				}
+			} finally {
+				session.lock.unlock();
+			}
+
+			if(!out.isStarted()) {
+				send(exchange, ok ? 200 : 400, messages.toString(StandardCharsets.UTF_8).trim());
+			}
+		} catch(Exception e) {
+			if(out.isStarted()) {
+				// part of the body is already out, the only way to report the failure is to cut the
+				// response short (the server drops the connection instead of ending the chunked body)
+				aborted = true;
+				throw new IOException(e.getMessage(), e);
+			}
+			if(e instanceof UnsupportedOperationException) {
+				send(exchange, 405, "Unsupported method.");
+			} else if(e instanceof IllegalArgumentException) {
+				send(exchange, 400, e.getMessage());
+			} else if(e instanceof NoSuchFileException) {
+				send(exchange, 404, "No such file: " + e.getMessage());
+			} else {
+				send(exchange, 500, e.getMessage());
+			}
+		} finally {
+			if(!aborted) {
+				exchange.close();
+			}
+		}
+	}
+
+	private boolean expired(Session session) {
+		return System.currentTimeMillis() - session.lastUsed > sessionTimeout;
+	}
+
+	private void expireSessions() {
+		sessions.entrySet().removeIf(entry -> {
+			if(expired(entry.getValue())) {
+				entry.getValue().efsm.logout();
+				return true;
+			}
+			return false;
+		});
+	}
+
+	private static String token(HttpExchange exchange) {
+		String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+		if(authorization == null || !authorization.startsWith("Bearer ")) {
+			return null;
+		}
+		return authorization.substring("Bearer ".length()).trim();
+	}
+
+	private static void writeList(OutputStream out, List<String> entries) throws IOException {
+		out.write((String.join("\n", entries) + "\n").getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static void send(HttpExchange exchange, int status, String message) throws IOException {
+		byte[] body = ((message != null ? message : "") + "\n").getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+		exchange.sendResponseHeaders(status, body.length);
+		try(OutputStream out = exchange.getResponseBody()) {
+			out.write(body);
+		}
+	}
+
+	private static Map<String, String> parseQuery(String query) {
+		Map<String, String> values = new HashMap<>();
+		if(query == null || query.isEmpty()) {
+			return values;
+		}
+		for(String pair : query.split("&")) {
+			int separator = pair.indexOf('=');
+			if(separator > 0) {
+				values.put(URLDecoder.decode(pair.substring(0, separator), StandardCharsets.UTF_8), URLDecoder.decode(pair.substring(separator + 1), StandardCharsets.UTF_8));
+			}
+		}
+		return values;
+	}
+
+	private static void deleteRecursively(Path dir) {
+		try(Stream<Path> paths = Files.walk(dir)) {
+			paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+		} catch(IOException e) {
+			// temp files, nothing to do
+		}
+	}
+}
@@ -1,22 +1,45 @@
 package system;
 
+import java.io.*;
 import java.util.*;
+import java.nio.channels.*;
 import java.nio.file.*;
-import java.nio.charset.*;
+import java.security.*;
+import javax.security.auth.*;
+import java.util.concurrent.*;
 import java.util.stream.*;
 import utl.*;
 
 public class EFSManager {
 	public static Random rand = new Random();
 	public static Path PROHIBITED = Path.of(EFSystem.pr.getProperty("PROHIBITED_DOWNLOAD_DIR"));
+	// home files go through the user's chunk store instead of one container each
+	private static final boolean DEDUP = EFSystem.pr.getLongProperty("DEDUP", 0) != 0;
 	
 	private EncryptionUtil eu;
 	private User user;
 	private Path rootDir;
 	private Path userHostDir;
 	private Path rootDirAbs;
+	// where messages for the user go: the terminal, or the response of the current request in daemon mode
+	private PrintStream console = System.out;
+	
+	// parsed once per session and kept with the unwrapped file keys until logout()
+	private PrivateKey privateKey;
+	private String fingerprint;
+	private KeyCache keyCache = new KeyCache((int) EFSystem.pr.getLongProperty("KEY_CACHE_SIZE", 256));
+	// listing of the home, shared with the user's other sessions and kept up to date until logout()
+	private DirectoryManifest manifest;
+	// name search over the home (fed by the manifest) and over the shares the user can open (fed by the inbox)
+	private NameIndex homeIndex;
+	private NameIndex sharedIndex;
+	private String sharedIdentity;
+	// the user's chunk store is shared with their other sessions, this session's handle goes at logout()
+	private ChunkStore chunkStore;
 	private static final Path EFS_SHARED = Path.of(EFSystem.pr.getProperty("SHARED"));
 	private static final Path EFS_SHARED_ABS = Path.of(EFSystem.pr.getProperty("SHARED_ABS"));
+	// shared objects by recipient, updated on every share
+	private static final SharedInbox inbox = new SharedInbox(Path.of(EFSystem.pr.getProperty("ROOT_BASE_ABS"), ".inbox"), EFS_SHARED_ABS);
 	static {
 		try {
 		    if(!Files.exists(EFS_SHARED)) {
@@ -36,11 +59,10 @@ public class EFSManager {
 		
 		initializeUserDir();
 		initializeUserHostDir();
-		
-		System.out.println();
-		System.out.println("Welcome to your home EFS directory!");
-		
-		listUserFiles();
+	}
+	
+	public void setConsole(PrintStream console) {
+		this.console = console;
 	}
 	
 	private void initializeUserDir() {
@@ -64,166 +86,758 @@ public class EFSManager {
 	}
 	
 	public void listUserFiles() {
-		System.out.println();
+		console.println();
 			
 		try {
-			System.out.println("Content of your EFS home directory: ");
-			listFilesRecursively(rootDir,0);
+			console.println("Content of your EFS home directory: ");
+			printManifest(getManifest(),Path.of(""),0);
 		} catch(Exception e) {
 			e.printStackTrace();
 		}
 	}
 	
+	// only the files shared with the user, found through their inbox
 	public void listSharedFiles() {
-		System.out.println();
+		console.println();
 			
 		try {
-			System.out.println("Content of EFS SHARED directory: ");
-			listFilesRecursively(EFS_SHARED,0);
+			console.println("Files shared with you: ");
+			List<String> incoming = listFiles(true);
+			if(incoming.isEmpty()) {
+				console.println("No files were shared with you.");
+				console.println();
+				return;
+			}
+			for(String name : incoming) {
+				console.println("[FILE]: " + name);
+			}
 		} catch(Exception e) {
 			e.printStackTrace();
 		}
 	}
 	
-	private void listFilesRecursively(Path dir, int depth) throws Exception{
-		try(Stream<Path> paths = Files.list(dir)){
-			List<Path> fileList = paths.filter(path -> Files.isDirectory(path) || path.getFileName().toString().endsWith(".enc")).sorted(Comparator.comparingInt(path -> path.getNameCount())).toList();
-			
-			// directory is empty
-			if(fileList.isEmpty() && depth == 0) {
-	            System.out.println("This directory is empty.");
-	            System.out.println();
-	            return;
-	        }
-			
-			for(Path path : fileList) {
-				String indent = "     ".repeat(depth);
-	        		
-				if(Files.isDirectory(path)) {
-					System.out.println(indent + "[DIR]: " + path.getFileName());
-					listFilesRecursively(path, depth+1);
-				} else {
-					System.out.println(indent + "[FILE]: " + path.getFileName());
+	// directories (ending with /) and stored files relative to the home, or the files shared with the user
+	public List<String> listFiles(boolean shared) throws Exception{
+		if(!shared) {
+			return getManifest().paths();
+		}
+		if(!inbox.isScanned(getFingerprint())) {
+			scanUnaddressedShares();
+		}
+		return inbox.list(getFingerprint());
+	}
+	
+	// shares with a single envelope (legacy ones too) don't say who they're for and only get into an inbox
+	// once downloaded by name, so the first listing of a user tries their key on each of them
+	private void scanUnaddressedShares() throws Exception{
+		try(Stream<Path> paths = Files.list(EFS_SHARED_ABS)) {
+			for(Path path : paths.filter(path -> path.getFileName().toString().endsWith(".enc")).toList()) {
+				try {
+					EFSObject object = EFSObject.open(path);
+					if(!object.getMetadata().hasKeySlots()) {
+						unwrapKeys(object);
+						inbox.add(List.of(getFingerprint()), path.getFileName().toString());
+					}
+				} catch(Exception e) {
+					// meant for someone else, or unreadable
 				}
 			}
 		}
+		inbox.markScanned(getFingerprint());
+	}
+	
+	private void printManifest(DirectoryManifest manifest, Path dir, int depth) {
+		SortedMap<String, Long> entries = manifest.list(dir);
+		if(entries.isEmpty() && depth == 0) {
+			console.println("This directory is empty.");
+			console.println();
+			return;
+		}
+		
+		String indent = "     ".repeat(depth);
+		for(Map.Entry<String, Long> entry : entries.entrySet()) {
+			if(entry.getValue() == DirectoryManifest.DIRECTORY) {
+				console.println(indent + "[DIR]: " + entry.getKey());
+				printManifest(manifest, dir.resolve(entry.getKey()), depth+1);
+			} else {
+				console.println(indent + "[FILE]: " + entry.getKey());
+			}
+		}
 	}
 	
 	// -------------------------------------------------------------
 	
+	// writes the ciphertext of a source at offset of the object, passing the plain text to the observer
+	// returns the chunk references taken for it (deduplicated files only)
+	private interface PayloadWriter {
+		List<ChunkStore.Ref> write(FileChannel out, long offset, String key, String algorithm, String iv, PlaintextObserver observer) throws Exception;
+	}
+	
+	// compression is settled before anything is written, it's part of the object's header
+	private record Payload(String compression, PayloadWriter writer) {}
+	
 	public boolean addFile(String sourceFile, String targetDir) throws Exception{
 		Path sourceFilePath = Path.of(sourceFile).normalize();
+		return addFile(sourceFilePath.getFileName().toString(), targetDir, payloadOf(sourceFilePath));
+	}
+	
+	// plain text read from a stream (daemon uploads), stored as targetDir/fileName.enc
+	public boolean addFile(InputStream source, String fileName, String targetDir) throws Exception{
+		if(!isPlainFileName(fileName)) {
+			console.println("Invalid file name: '" + fileName + "'");
+			return false;
+		}
+		return addFile(fileName, targetDir, payloadOf(source));
+	}
+	
+	// deduplicated files aren't compressed, compressed bytes would shift with every edit and
+	// no chunk would be shared
+	private Payload payloadOf(Path sourceFilePath) throws Exception{
+		if(DEDUP) {
+			return new Payload(null, (out, offset, key, algorithm, iv, observer) -> {
+				try(InputStream in = Files.newInputStream(sourceFilePath)) {
+					return eu.encryptDeduplicated(in, out, offset, key, algorithm, iv, observer, getChunkStore());
+				}
+			});
+		}
+		
+		Compression.Codec codec;
+		try(InputStream in = Files.newInputStream(sourceFilePath)) {
+			byte[] sample = in.readNBytes(Compression.SAMPLE_LENGTH);
+			codec = Compression.choose(sample, sample.length);
+		}
+		if(codec == null) {
+			return new Payload(null, (out, offset, key, algorithm, iv, observer) -> {
+				eu.encryptAES(sourceFilePath, out, offset, key, algorithm, iv, observer);
+				return List.of();
+			});
+		}
+		return new Payload(codec.name(), (out, offset, key, algorithm, iv, observer) -> {
+			try(InputStream in = codec.compress(Compression.observing(Files.newInputStream(sourceFilePath), observer))) {
+				eu.encryptAES(in, out, offset, key, algorithm, iv, null);
+			}
+			return List.of();
+		});
+	}
+	
+	private Payload payloadOf(InputStream source) throws Exception{
+		if(DEDUP) {
+			return new Payload(null, (out, offset, key, algorithm, iv, observer) -> eu.encryptDeduplicated(source, out, offset, key, algorithm, iv, observer, getChunkStore()));
+		}
+		
+		// the sample is read ahead and handed out again by the buffer
+		BufferedInputStream buffered = new BufferedInputStream(source, Compression.SAMPLE_LENGTH);
+		buffered.mark(Compression.SAMPLE_LENGTH);
+		byte[] sample = buffered.readNBytes(Compression.SAMPLE_LENGTH);
+		buffered.reset();
+		Compression.Codec codec = Compression.choose(sample, sample.length);
+		if(codec == null) {
+			return new Payload(null, (out, offset, key, algorithm, iv, observer) -> {
+				eu.encryptAES(buffered, out, offset, key, algorithm, iv, observer);
+				return List.of();
+			});
+		}
+		return new Payload(codec.name(), (out, offset, key, algorithm, iv, observer) -> {
+			try(InputStream in = codec.compress(Compression.observing(buffered, observer))) {
+				eu.encryptAES(in, out, offset, key, algorithm, iv, null);
+			}
+			return List.of();
+		});
+	}
+	
+	// empty hidden file next to target (.name.<random><suffix>) with the default permissions, which
+	// Files.createTempFile would narrow down to the owner
+	private static Path createTmpSibling(Path target, String suffix) throws IOException {
+		while(true) {
+			Path tmpPath = target.resolveSibling("." + target.getFileName() + "." + Long.toHexString(rand.nextLong()) + suffix);
+			try {
+				return Files.createFile(tmpPath);
+			} catch(FileAlreadyExistsException e) {
+				// taken, another name
+			}
+		}
+	}
+	
+	private boolean addFile(String fileName, String targetDir, Payload payload) throws Exception{
 		Path destinationDir = rootDirAbs.resolve(targetDir).normalize();
 		if(!destinationDir.startsWith(rootDirAbs)) {
-			System.out.println("Invalid directory path! You can only add files inside your directory!");
+			console.println("Invalid directory path! You can only add files inside your directory!");
 			return false;
 		}
 		
 		if(!Files.exists(destinationDir) || !Files.isDirectory(destinationDir)) {
-			System.out.println("Invalid target directory: '" + destinationDir + "'");
+			console.println("Invalid target directory: '" + destinationDir + "'");
 		}	
 		
+		storeFile(fileName, destinationDir, payload);
+		
+		console.println("File and successfully added to EFS system: " + destinationDir.toString());
+		return true;
+	}
+	
+	// encrypts one file into destinationDir/fileName.enc
+	private Path storeFile(String fileName, Path destinationDir, Payload payload) throws Exception{
 		// randomly choosing an algorithm
 		String aesAlgs[] = {"AES-128", "AES-192", "AES-256"};
 		String selectedAlg = aesAlgs[rand.nextInt(aesAlgs.length)];
 		String algLen[] = selectedAlg.split("-");
 		
-		// generating key, iv, hash of plain text
+		// generating key and iv
 		String key = eu.generateKey(algLen[0].trim(),Integer.parseInt(algLen[1].trim())).trim();
-		String iv = EncryptionUtil.executeProcess(new ProcessBuilder("wsl", "openssl", "rand", "-hex", "16")).trim();
+		String iv = eu.generateIV();
 		
 		String dgstAlgs[] = {"SHA-256", "SHA-512", "MD5"};
 		String selectedDgstAlg = dgstAlgs[rand.nextInt(dgstAlgs.length)];
-		String hash = eu.hash(sourceFilePath, selectedDgstAlg).trim();
+		MessageDigest md = EncryptionUtil.newDigest(selectedDgstAlg);
+		
+		String hashAlg = EncryptionUtil.dgstLabel(selectedDgstAlg);
 		
-		String encryptedFile = eu.encryptAES(sourceFilePath,destinationDir,key,selectedAlg,iv);
-		Path encryptedFilePath = destinationDir.resolve(Path.of(encryptedFile).getFileName());		
-		if(!Files.exists(encryptedFilePath)) {
-			System.out.println("ERROR: Encrypted file was NOT created!");
+		// encipherment with rsa (algorithm, key and iv in one envelope)
+		PublicKey publicKey = EFSystem.getPublicKey(user.getUsername());
+		byte[] wrappedKeys = eu.wrapKeys(new KeyEnvelope(selectedAlg, key, iv, null), publicKey);
+		
+		// metadata and ciphertext go into one object, the header is written first with an empty hash
+		// of the same length and filled in once the hash of plain text is known
+		// the object is written next to its name and only then replaces an older version in one step, so
+		// a failed upload leaves the older version as it was
+		Path encryptedFilePath = destinationDir.resolve(fileName + ".enc");
+		List<ChunkStore.Ref> replaced = chunkRefsOf(encryptedFilePath);
+		Path tmpPath = createTmpSibling(encryptedFilePath, ".tmp");
+		List<ChunkStore.Ref> written = List.of();
+		try {
+			try(FileChannel out = FileChannel.open(tmpPath, StandardOpenOption.WRITE)) {
+				String emptyHash = HexFormat.of().formatHex(new byte[md.getDigestLength()]);
+				long payloadOffset = EFSObject.writeHeader(out, new FileMetadata(hashAlg, emptyHash, wrappedKeys, payload.compression()).toBytes(), null);
+				
+				// hash of plain text is computed on the same read that encrypts it
+				written = payload.writer().write(out,payloadOffset,key,selectedAlg,iv,PlaintextObserver.of(md));
+				
+				String onlyHash = HexFormat.of().formatHex(md.digest());
+				EFSObject.writeHeader(out, new FileMetadata(hashAlg, onlyHash, wrappedKeys, payload.compression()).toBytes(), null);
+				out.force(true);
+			}
+			Files.move(tmpPath, encryptedFilePath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch(Exception e) {
+			Files.deleteIfExists(tmpPath);
+			if(!written.isEmpty()) {
+				getChunkStore().release(written);
+			}
+			throw e;
+		}
+		
+		// leftovers of an older copy stored as separate files
+		Files.deleteIfExists(EFSObject.metadataPath(encryptedFilePath));
+		Files.deleteIfExists(EFSObject.signaturePath(encryptedFilePath));
+		if(!replaced.isEmpty()) {
+			getChunkStore().release(replaced);
+		}
+		
+		if(encryptedFilePath.startsWith(rootDirAbs)) {
+			long size = Files.size(encryptedFilePath);
+			updateManifest(manifest -> manifest.putFile(rootDirAbs.relativize(encryptedFilePath), size));
+		}
+		return encryptedFilePath;
+	}
+	
+	// uploads a whole directory tree to targetDir/<directory name>, several files at a time
+	// (BULK_CONCURRENCY, 0 = all cores), and prints how each file went
+	public boolean addDirectory(String sourceDir, String targetDir) throws Exception{
+		Path sourceDirPath = Path.of(sourceDir).toAbsolutePath().normalize();
+		Path destinationDir = rootDirAbs.resolve(targetDir).normalize();
+		if(!destinationDir.startsWith(rootDirAbs)) {
+			console.println("Invalid directory path! You can only add files inside your directory!");
 			return false;
 		}
+		if(!Files.isDirectory(sourceDirPath) || sourceDirPath.getFileName() == null) {
+			console.println("Invalid source directory: '" + sourceDirPath + "'");
+			return false;
+		}
+		Path destinationRoot = destinationDir.resolve(sourceDirPath.getFileName().toString());
 		
-		// generating metadata
-		Path metadataFilePath = destinationDir.resolve(Path.of(encryptedFile).getFileName().toString().replace(".enc", ".meta"));
-		String hashAlg = hash.split("\\(")[0].trim();
-		String onlyHash = hash.split("= ")[1].trim();
-		String metadataPlain = "hash=" + hashAlg + ":" + onlyHash;
+		int concurrency = (int) EFSystem.pr.getLongProperty("BULK_CONCURRENCY", 0);
+		// the walk waits for a permit before handing out the next file, so it never runs far ahead
+		Semaphore permits = new Semaphore(concurrency > 0 ? concurrency : Runtime.getRuntime().availableProcessors());
+		Map<String, String> results = new ConcurrentSkipListMap<>();
+		List<String> skipped = new ArrayList<>();
 		
-		// encipherment with rsa
-		String encryptedAlg = eu.encryptRSA(selectedAlg, user.getPublicKeyPath());
-		String encryptedKey = eu.encryptRSA(key, user.getPublicKeyPath());
-		String encryptedIV = eu.encryptRSA(iv, user.getPublicKeyPath());
-		String metadata = metadataPlain + "\nalgorithm=" + encryptedAlg + "\niv=" + encryptedIV + "\nkey=" + encryptedKey;
-		Files.write(metadataFilePath, metadata.getBytes(StandardCharsets.UTF_8));
+		try(ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+			Stream<Path> paths = Files.walk(sourceDirPath)) {
+			for(Path path : (Iterable<Path>) paths::iterator) {
+				String relative = sourceDirPath.relativize(path).toString();
+				Path target = destinationRoot.resolve(relative).normalize();
+				
+				if(Files.isDirectory(path)) {
+					Files.createDirectories(target);
+					updateManifest(manifest -> manifest.putDirectory(rootDirAbs.relativize(target)));
+					continue;
+				}
+				if(!Files.isRegularFile(path)) {
+					skipped.add(relative);
+					continue;
+				}
+				
+				permits.acquire();
+				executor.execute(() -> {
+					try {
+						storeFile(path.getFileName().toString(), target.getParent(), payloadOf(path));
+						results.put(relative, "");
+					} catch(Exception e) {
+						results.put(relative, e.getMessage() != null ? e.getMessage() : e.toString());
+					} finally {
+						permits.release();
+					}
+				});
+			}
+		}
 		
-		System.out.println("File and successfully added to EFS system: " + destinationDir.toString());
-		return true;
+		int failed = 0;
+		for(Map.Entry<String, String> result : results.entrySet()) {
+			if(result.getValue().isEmpty()) {
+				console.println("[OK]     " + result.getKey());
+			} else {
+				console.println("[FAILED] " + result.getKey() + ": " + result.getValue());
+				failed++;
+			}
+		}
+		for(String path : skipped) {
+			console.println("[SKIPPED] " + path + ": not a regular file");
+		}
+		console.println("Uploaded " + (results.size() - failed) + " of " + results.size() + " files to " + destinationRoot);
+		return failed == 0;
 	}
 	
 	public boolean downloadFile(String encryptedFile, String destination, String userPrivateKey) throws Exception{
 		Path encryptedFilePath = rootDirAbs.resolve(encryptedFile).normalize();
-		Path metadataFilePath = encryptedFilePath.resolveSibling(encryptedFilePath.getFileName().toString().replace(".enc",".meta"));
 		
-		if(!Files.exists(encryptedFilePath) || !Files.exists(metadataFilePath)) {
-			System.out.println("Couldn't download the file...");
+		EFSObject object;
+		try {
+			object = EFSObject.open(encryptedFilePath);
+		} catch(NoSuchFileException e) {
+			console.println("Couldn't download the file...");
 			return false;
 		}
 		
 		Path destinationPath = userHostDir.resolve(destination).normalize();
 		
 		// working with metadata
-		List<String> metadataLines = Files.readAllLines(metadataFilePath, StandardCharsets.UTF_8);
-		
-		if(metadataLines.size() < 4) {
+		FileMetadata metadata = object.getMetadata();
+		if(metadata.getHash() == null) {
 			throw new IllegalArgumentException("Metadata is incomplete or corrupted.");
 		}
+		String hashAlg = metadata.getHashAlg();
+		String hashOnly = metadata.getHash();
 		
-		String algHash = metadataLines.get(0).split("=")[1].trim();
-		String hashAlg = algHash.split(":")[0].trim();
-		String hashOnly = algHash.split(":")[1].trim();
+		KeyEnvelope keys = unwrapKeys(object);
 		
-		// encrypted part of metadata
-		StringBuilder ciphertextBuilder = new StringBuilder();
-		for(int i=1; i<metadataLines.size(); i++) {
-			ciphertextBuilder.append(metadataLines.get(i));
+		// decrypt the main file, hashing the plain text as it is written; it only shows up under its
+		// name if the hash matches
+		MessageDigest md = EncryptionUtil.newDigest(hashAlg);
+		Path decryptedFilePath = decryptVerified(object,keys,destinationPath,PlaintextObserver.of(md),() -> HexFormat.of().formatHex(md.digest()).equals(hashOnly));
+		if(decryptedFilePath == null) {
+			console.println("Your file has been modified! Nothing was downloaded.");
+			return false;
+		}
+		console.println("Sucessfully downloaded to " + decryptedFilePath);
+		return true;
+	}
+	
+	
+	// downloads a directory of the EFS home with everything under it to destination/<directory name>
+	// files are decrypted in parallel (BULK_CONCURRENCY, 0 = all cores) on a work-stealing pool, a
+	// subdirectory becomes a task of its own. prints how each file went
+	public boolean downloadDirectory(String encryptedDir, String destination) throws Exception{
+		Path sourceDir = rootDirAbs.resolve(encryptedDir).normalize();
+		if(!sourceDir.startsWith(rootDirAbs) || !Files.isDirectory(sourceDir)) {
+			console.println("Invalid EFS directory: '" + encryptedDir + "'");
+			return false;
+		}
+		Path destinationRoot = userHostDir.resolve(destination).normalize().resolve(sourceDir.getFileName().toString());
+		if(isProhibited(destinationRoot)) {
+			console.println("You cannot download files into the EFS system directory.");
+			return false;
 		}
-		String metadata = ciphertextBuilder.toString();
 		
-		int algIndex = metadata.indexOf("algorithm=");
-		int ivIndex = metadata.indexOf("iv=");
-		int keyIndex = metadata.indexOf("key=");
+		int parallelism = (int) EFSystem.pr.getLongProperty("BULK_CONCURRENCY", 0);
+		ForkJoinPool pool = new ForkJoinPool(parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors());
+		Map<String, String> results = new ConcurrentSkipListMap<>();
+		try {
+			pool.invoke(new DirectoryDownload(sourceDir, destinationRoot, sourceDir, results));
+		} finally {
+			pool.shutdown();
+		}
 		
-		if(algIndex == -1 || ivIndex == -1 || keyIndex == -1) {
-			throw new IllegalArgumentException("Metadata does not contain a key field.");
+		int failed = 0;
+		for(Map.Entry<String, String> result : results.entrySet()) {
+			if(result.getValue().isEmpty()) {
+				console.println("[OK]     " + result.getKey());
+			} else {
+				console.println("[FAILED] " + result.getKey() + ": " + result.getValue());
+				failed++;
+			}
 		}
+		console.println("Downloaded " + (results.size() - failed) + " of " + results.size() + " files to " + destinationRoot);
+		return failed == 0;
+	}
+	
+	@SuppressWarnings("serial")
+	private class DirectoryDownload extends RecursiveAction {
+		private final Path dir;
+		private final Path destinationDir;
+		private final Path sourceRoot;
+		private final Map<String, String> results;
 		
-		String encryptedAlg = metadata.substring(algIndex + "algoritmh=".length(), ivIndex).trim();
-		String algorithm = eu.decryptRSA(encryptedAlg, user.getPrivateKeyPath());
-		String encryptedIV = metadata.substring(ivIndex + "iv=".length(), keyIndex).trim();
-		String iv = eu.decryptRSA(encryptedIV, user.getPrivateKeyPath());
-		String encryptedKey = metadata.substring(keyIndex + "key=".length()).trim();
-		String key = eu.decryptRSA(encryptedKey, user.getPrivateKeyPath());
+		private DirectoryDownload(Path dir, Path destinationDir, Path sourceRoot, Map<String, String> results) {
+			this.dir = dir;
+			this.destinationDir = destinationDir;
+			this.sourceRoot = sourceRoot;
+			this.results = results;
+		}
 		
-		// decrypt the main file
-		String decryptedFile = eu.decryptAES(encryptedFilePath,destinationPath,key,algorithm,iv);
-		System.out.println("Sucessfully downloaded to " + decryptedFile);
+		@Override
+		protected void compute() {
+			List<ForkJoinTask<?>> tasks = new ArrayList<>();
+			try(Stream<Path> paths = Files.list(dir)) {
+				Files.createDirectories(destinationDir);
+				for(Path path : paths.toList()) {
+					if(Files.isDirectory(path)) {
+						tasks.add(new DirectoryDownload(path, destinationDir.resolve(path.getFileName().toString()), sourceRoot, results));
+					} else if(path.getFileName().toString().endsWith(".enc")) {
+						tasks.add(RecursiveAction.adapt(() -> downloadInto(path, destinationDir, sourceRoot.relativize(path).toString(), results)));
+					}
+				}
+			} catch(Exception e) {
+				results.put(sourceRoot.relativize(dir).toString() + "/", e.getMessage() != null ? e.getMessage() : e.toString());
+				return;
+			}
+			ForkJoinTask.invokeAll(tasks);
+		}
+	}
+	
+	// one file of a directory download, the stored hash is checked on the decrypting pass
+	private void downloadInto(Path encryptedFilePath, Path destinationDir, String relative, Map<String, String> results) {
+		try {
+			EFSObject object = EFSObject.open(encryptedFilePath);
+			FileMetadata metadata = object.getMetadata();
+			if(metadata.getHash() == null) {
+				throw new IllegalArgumentException("Metadata is incomplete or corrupted.");
+			}
+			KeyEnvelope keys = unwrapKeys(object);
+			
+			MessageDigest md = EncryptionUtil.newDigest(metadata.getHashAlg());
+			Path decryptedFilePath = decryptVerified(object,keys,destinationDir,PlaintextObserver.of(md),() -> HexFormat.of().formatHex(md.digest()).equals(metadata.getHash()));
+			
+			results.put(relative, decryptedFilePath != null ? "" : "Your file has been modified!");
+		} catch(Exception e) {
+			results.put(relative, e.getMessage() != null ? e.getMessage() : e.toString());
+		}
+	}
+	
+	// destinations inside the EFS system directory are refused
+	public static boolean isProhibited(Path destinationPath) {
+		return destinationPath.toAbsolutePath().normalize().startsWith(PROHIBITED.toAbsolutePath().normalize());
+	}
+	
+	// plain text of a home file into a stream (daemon downloads), the stream is left open
+	// false if the file doesn't exist, chunks are authenticated before they are written and a
+	// wrong hash at the end is thrown so the caller can abort what it already sent
+	public boolean downloadFile(String encryptedFile, OutputStream out) throws Exception{
+		Path encryptedFilePath = rootDirAbs.resolve(encryptedFile).normalize();
 		
-		// validate hash integrity
-		String newHash = eu.hash(Path.of(decryptedFile), hashAlg);
-		String newHashOnly = newHash.split("= ")[1].trim();
-				
-		if(!newHashOnly.equals(hashOnly)) {
-			System.out.println("Your file has been modified!");
+		EFSObject object;
+		try {
+			if(!encryptedFilePath.startsWith(rootDirAbs)) {
+				throw new NoSuchFileException(encryptedFile);
+			}
+			object = EFSObject.open(encryptedFilePath);
+		} catch(NoSuchFileException e) {
+			console.println("Couldn't download the file...");
+			return false;
+		}
+		
+		FileMetadata metadata = object.getMetadata();
+		if(metadata.getHash() == null) {
+			throw new IllegalArgumentException("Metadata is incomplete or corrupted.");
+		}
+		KeyEnvelope keys = unwrapKeys(object);
+		
+		MessageDigest md = EncryptionUtil.newDigest(metadata.getHashAlg());
+		decryptPayload(object,keys,out,PlaintextObserver.of(md));
+		
+		if(!HexFormat.of().formatHex(md.digest()).equals(metadata.getHash())) {
+			throw new IOException("Your file has been modified!");
 		}
 		return true;
 	}
 	
+	// random access to a file inside the EFS home, only the chunks that are read get decrypted
+	public SeekableByteChannel openFile(String encryptedFile) throws Exception{
+		Path encryptedFilePath = rootDirAbs.resolve(encryptedFile).normalize();
+		if(!encryptedFilePath.startsWith(rootDirAbs)) {
+			throw new NoSuchFileException(encryptedFile);
+		}
+		
+		EFSObject object = EFSObject.open(encryptedFilePath);
+		KeyEnvelope keys = unwrapKeys(object);
+		if(object.getMetadata().getCompression() != null) {
+			throw new IllegalArgumentException("File was stored compressed and can only be downloaded as a whole.");
+		}
+		return eu.openAES(encryptedFilePath, object.getPayloadOffset(), keys.getKey());
+	}
+	
+	// decrypts into a hidden temporary file in destinationDir, which is moved to its name in one step once
+	// verified returns true after everything was written. returns that path, or null if verification failed
+	// (nothing is left behind then), so a file that appears under its name has always been checked
+	private Path decryptVerified(EFSObject object, KeyEnvelope keys, Path destinationDir, PlaintextObserver observer, Callable<Boolean> verified) throws Exception{
+		Path decryptedPath = destinationDir.resolve(object.getPath().getFileName().toString().replace(".enc", ""));
+		Path tmpPath = createTmpSibling(decryptedPath, ".part");
+		try {
+			decryptPayload(object, keys, tmpPath, observer);
+			if(!verified.call()) {
+				return null;
+			}
+			Files.move(tmpPath, decryptedPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			return decryptedPath;
+		} finally {
+			Files.deleteIfExists(tmpPath);
+		}
+	}
+	
+	// plain text of a file into decryptedPath, undoing the compression it was stored with
+	private void decryptPayload(EFSObject object, KeyEnvelope keys, Path decryptedPath, PlaintextObserver observer) throws Exception{
+		if(object.getMetadata().getCompression() == null) {
+			eu.decryptAESToFile(object.getPath(),object.getPayloadOffset(),decryptedPath,keys.getKey(),keys.getAlgorithm(),keys.getIV(),observer);
+			return;
+		}
+		try(OutputStream out = new BufferedOutputStream(Files.newOutputStream(decryptedPath), CipherEngine.BUFFER_SIZE)) {
+			decryptPayload(object, keys, out, observer);
+		}
+	}
+	
+	private void decryptPayload(EFSObject object, KeyEnvelope keys, OutputStream out, PlaintextObserver observer) throws Exception{
+		String compression = object.getMetadata().getCompression();
+		if(compression == null) {
+			eu.decryptAES(object.getPath(),object.getPayloadOffset(),out,keys.getKey(),keys.getAlgorithm(),keys.getIV(),observer);
+			return;
+		}
+		// the observer sees the decompressed plain text, the one that was hashed
+		try(OutputStream plain = Compression.codec(compression).decompress(Compression.observing(out, observer))) {
+			eu.decryptAES(object.getPath(),object.getPayloadOffset(),plain,keys.getKey(),keys.getAlgorithm(),keys.getIV(),null);
+		}
+	}
+	
+	private synchronized PrivateKey getPrivateKey() throws Exception{
+		if(privateKey == null) {
+			privateKey = KeyUtil.loadPrivateKey(user.getPrivateKeyPath());
+		}
+		return privateKey;
+	}
+	
+	// rsa unwrap only the first time a file (in its current version) is opened in this session
+	private KeyEnvelope unwrapKeys(EFSObject object) throws Exception{
+		KeyEnvelope keys = keyCache.get(object.getMetadataIdentity());
+		if(keys == null) {
+			keys = eu.unwrapKeys(object.getMetadata(), getFingerprint(), getPrivateKey());
+			keyCache.put(object.getMetadataIdentity(), keys);
+		}
+		return keys;
+	}
+	
+	// finds the user's key slot in shared files
+	private synchronized String getFingerprint() throws Exception{
+		if(fingerprint == null) {
+			fingerprint = EncryptionUtil.fingerprint(EFSystem.getPublicKey(user.getUsername()));
+		}
+		return fingerprint;
+	}
+	
+	private synchronized DirectoryManifest getManifest() throws Exception{
+		if(manifest == null) {
+			manifest = DirectoryManifest.open(rootDirAbs, eu, EFSystem.getPublicKey(user.getUsername()), getPrivateKey());
+			manifest.startWatching();
+		}
+		return manifest;
+	}
+	
+	private synchronized NameIndex getHomeIndex() throws Exception{
+		if(homeIndex == null) {
+			homeIndex = new NameIndex();
+			getManifest().addListener(homeIndex);
+		}
+		return homeIndex;
+	}
+	
+	// built from the inbox on first search and again once another session added to it
+	private synchronized NameIndex getSharedIndex() throws Exception{
+		// taken before listing, an add in between only means one more rebuild
+		String identity = inbox.identity(getFingerprint());
+		if(sharedIndex == null || !Objects.equals(identity, sharedIdentity)) {
+			NameIndex index = new NameIndex();
+			for(String name : listFiles(true)) {
+				index.added(name);
+			}
+			sharedIndex = index;
+			sharedIdentity = identity;
+		}
+		return sharedIndex;
+	}
+	
+	private synchronized void sharedAdded(String name) {
+		if(sharedIndex != null) {
+			sharedIndex.added(name);
+		}
+	}
+	
+	// files and directories of the home, or shared files meant for the user, under dir whose name matches the pattern
+	// (* and ?, text without them matches anywhere in the name)
+	public List<String> search(boolean shared, String dir, String pattern) throws Exception{
+		return (shared ? getSharedIndex() : getHomeIndex()).search(dir, pattern);
+	}
+	
+	public void searchFiles(String dir, String pattern) throws Exception{
+		List<String> home = search(false, dir, pattern);
+		List<String> shared = search(true, dir, pattern);
+		for(String path : home) {
+			console.println("[HOME]:   " + path);
+		}
+		for(String path : shared) {
+			console.println("[SHARED]: " + path);
+		}
+		if(home.isEmpty() && shared.isEmpty()) {
+			console.println("No files found.");
+		}
+	}
+	
+	private synchronized ChunkStore getChunkStore() throws Exception{
+		if(chunkStore == null) {
+			chunkStore = ChunkStore.open(ChunkStore.storeDir(user.getUsername()), eu, EFSystem.getPublicKey(user.getUsername()), getPrivateKey());
+		}
+		return chunkStore;
+	}
+	
+	// chunks a stored file holds in the chunk store, read before it is replaced or deleted
+	private List<ChunkStore.Ref> chunkRefsOf(Path encryptedFilePath) {
+		try {
+			if(!Files.exists(encryptedFilePath)) {
+				return List.of();
+			}
+			EFSObject object = EFSObject.open(encryptedFilePath);
+			if(!ChunkStore.isChunkList(encryptedFilePath, object.getPayloadOffset())) {
+				return List.of();
+			}
+			return eu.chunkRefs(encryptedFilePath, object.getPayloadOffset(), unwrapKeys(object).getKey());
+		} catch(Exception e) {
+			// unreadable, its chunks stay in the store
+			return List.of();
+		}
+	}
+	
+	private interface ManifestUpdate {
+		void apply(DirectoryManifest manifest) throws Exception;
+	}
+	
+	// the change itself is done already, a manifest that couldn't record it is dropped and rebuilt on next use
+	private void updateManifest(ManifestUpdate update) {
+		try {
+			update.apply(getManifest());
+		} catch(Exception e) {
+			console.println("Couldn't update the directory manifest: " + e.getMessage());
+			synchronized(this) {
+				try {
+					closeManifest();
+					Files.deleteIfExists(rootDirAbs.resolve(DirectoryManifest.FILE_NAME));
+				} catch(IOException closeFailure) {
+					// rebuilt from the tree either way
+				}
+			}
+		}
+	}
+	
+	// lets go of the manifest other sessions of the user may still be using
+	private synchronized void closeManifest() throws IOException {
+		if(manifest == null) {
+			return;
+		}
+		if(homeIndex != null) {
+			manifest.removeListener(homeIndex);
+			homeIndex = null;
+		}
+		DirectoryManifest closing = manifest;
+		manifest = null;
+		closing.close();
+	}
+	
+	// forgets the session's private key and file keys, stops watching the home
+	public void logout() {
+		synchronized(this) {
+			try {
+				closeManifest();
+			} catch(IOException e) {
+				// nothing left to write
+			}
+			sharedIndex = null;
+			sharedIdentity = null;
+			if(chunkStore != null) {
+				try {
+					chunkStore.close();
+				} catch(IOException e) {
+					console.println("Couldn't save chunk references: " + e.getMessage());
+				}
+				chunkStore = null;
+			}
+		}
+		keyCache.clear();
+		if(privateKey != null) {
+			try {
+				privateKey.destroy();
+			} catch(DestroyFailedException e) {
+				// keys from the default provider can't be destroyed, dropping the reference is all that's left
+			}
+			privateKey = null;
+		}
+	}
 	
 	public boolean addFileToShared(String sourceFile, String recipientUsername) throws Exception{
+		return addFileToShared(sourceFile, List.of(recipientUsername));
+	}
+	
+	// the file is signed and encrypted once, each recipient gets a key slot with the keys wrapped for them
+	// (a file goes through the parallel or mapped encryption of large files)
+	public boolean addFileToShared(String sourceFile, List<String> recipientUsernames) throws Exception{
 		Path sourceFilePath = Path.of(sourceFile).normalize();
+		return addFileToShared(sourceFilePath.getFileName().toString(), recipientUsernames, (out, offset, key, algorithm, iv, observer) -> {
+			eu.encryptAES(sourceFilePath, out, offset, key, algorithm, iv, observer);
+			return List.of();
+		});
+	}
+	
+	// plain text read from a stream (daemon uploads)
+	public boolean addFileToShared(InputStream source, String fileName, List<String> recipientUsernames) throws Exception{
+		return addFileToShared(fileName, recipientUsernames, (out, offset, key, algorithm, iv, observer) -> {
+			eu.encryptAES(source, out, offset, key, algorithm, iv, observer);
+			return List.of();
+		});
+	}
+	
+	// the signature is computed on the same pass that encrypts the plain text
+	private boolean addFileToShared(String fileName, List<String> recipientUsernames, PayloadWriter payload) throws Exception{
+		if(!isPlainFileName(fileName)) {
+			console.println("Invalid file name: '" + fileName + "'");
+			return false;
+		}
 		
-		// signing source file
-		eu.signData(sourceFilePath,EFS_SHARED_ABS,user.getPrivateKeyPath());
+		Map<String, PublicKey> recipientKeys = new LinkedHashMap<>();
+		for(String recipientUsername : recipientUsernames) {
+			PublicKey recipientKey = EFSystem.getPublicKey(recipientUsername.trim());
+			if(recipientKey == null) {
+				console.println("User with entered username doesn't exist: " + recipientUsername.trim());
+				return false;
+			}
+			recipientKeys.put(EncryptionUtil.fingerprint(recipientKey), recipientKey);
+		}
+		if(recipientKeys.isEmpty()) {
+			console.println("No recipients entered!");
+			return false;
+		}
 		
 		// randomly choosing an algorithm
 		String aesAlgs[] = {"AES-128", "AES-192", "AES-256"};
@@ -232,145 +846,196 @@ public class EFSManager {
 		
 		// generating key and iv
 		String key = eu.generateKey(algLen[0].trim(),Integer.parseInt(algLen[1].trim())).trim();
-		String iv = EncryptionUtil.executeProcess(new ProcessBuilder("wsl", "openssl", "rand", "-hex", "16")).trim();
+		String iv = eu.generateIV();
 		
-		User recipient = EFSystem.EFSusers.get(recipientUsername);
-		if(recipient == null) {
-			System.out.println("User with entered username doesn't exist!");
-			return false;
+		// encipherment with rsa (algorithm, key, iv and sender in one envelope), once per recipient
+		KeyEnvelope envelope = new KeyEnvelope(selectedAlg, key, iv, user.getUsername());
+		Map<String, byte[]> keySlots = new LinkedHashMap<>();
+		for(Map.Entry<String, PublicKey> recipient : recipientKeys.entrySet()) {
+			keySlots.put(recipient.getKey(), eu.wrapKeys(envelope, recipient.getValue()));
 		}
 		
-		// data encryption
-		String encryptedFile = eu.encryptAES(sourceFilePath,EFS_SHARED_ABS,key,selectedAlg,iv);
-		Path encryptedFilePath = EFS_SHARED_ABS.resolve(Path.of(encryptedFile).getFileName());
-		
-		if(!Files.exists(encryptedFilePath)) {
-			System.out.println("ERROR: Encrypted file was NOT created!");
-			return false;
+		// data encryption, metadata and signature in front of the ciphertext
+		// the signature is computed on the same read that encrypts the file and takes the place left for it
+		// the object is written next to the claimed name and replaces it in one step once it is signed, so
+		// a crash never leaves an object with the empty signature under that name
+		Signature signature = EncryptionUtil.newSigner(getPrivateKey());
+		Path encryptedFilePath = claimSharedName(fileName);
+		Path tmpPath = null;
+		try {
+			tmpPath = createTmpSibling(encryptedFilePath, ".tmp");
+			try(FileChannel out = FileChannel.open(tmpPath, StandardOpenOption.WRITE)) {
+				byte[] metadataBytes = new FileMetadata(keySlots).toBytes();
+				long payloadOffset = EFSObject.writeHeader(out, metadataBytes, new byte[EncryptionUtil.signatureLength(getPrivateKey())]);
+				payload.write(out,payloadOffset,key,selectedAlg,iv,PlaintextObserver.of(signature));
+				EFSObject.writeHeader(out, metadataBytes, signature.sign());
+				out.force(true);
+			}
+			Files.move(tmpPath, encryptedFilePath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch(Exception e) {
+			if(tmpPath != null) {
+				Files.deleteIfExists(tmpPath);
+			}
+			Files.deleteIfExists(encryptedFilePath);
+			throw e;
 		}
 		
-		// encipherment with rsa
-		String encryptedAlg = eu.encryptRSA(selectedAlg, recipient.getPublicKeyPath());
-		String encryptedIV = eu.encryptRSA(iv, recipient.getPublicKeyPath());
-		String encryptedKey = eu.encryptRSA(key, recipient.getPublicKeyPath());
-		String encryptedSender = eu.encryptRSA(user.getUsername(), recipient.getPublicKeyPath());
-
-		String metadata = "algorithm=" + encryptedAlg + "\niv=" + encryptedIV + "\nkey=" + encryptedKey + "\nsender=" + encryptedSender;
-		Path metadataFilePath = EFS_SHARED_ABS.resolve(Path.of(encryptedFile).getFileName().toString().replace(".enc", ".meta"));
-		Files.write(metadataFilePath, metadata.getBytes(StandardCharsets.UTF_8));
+		Files.deleteIfExists(EFSObject.metadataPath(encryptedFilePath));
+		Files.deleteIfExists(EFSObject.signaturePath(encryptedFilePath));
+		inbox.add(keySlots.keySet(), encryptedFilePath.getFileName().toString());
+		if(keySlots.containsKey(getFingerprint())) {
+			sharedAdded(encryptedFilePath.getFileName().toString());
+		}
 		
-		System.out.println("File successfully added to EFS shared folder.");
+		console.println("File successfully added to EFS shared folder as " + encryptedFilePath.getFileName() + " for " + keySlots.size() + " user(s).");
 		return true;
 	}
 	
+	// name.ext.enc, or name (2).ext.enc and so on if taken, created empty so no other share gets it
+	private static Path claimSharedName(String fileName) throws IOException {
+		int dot = fileName.lastIndexOf('.');
+		String stem = dot > 0 ? fileName.substring(0, dot) : fileName;
+		String extension = dot > 0 ? fileName.substring(dot) : "";
+		for(int n=1; ; n++) {
+			Path encryptedFilePath = EFS_SHARED_ABS.resolve((n == 1 ? fileName : stem + " (" + n + ")" + extension) + ".enc");
+			try {
+				return Files.createFile(encryptedFilePath);
+			} catch(FileAlreadyExistsException e) {
+				// shared earlier, the next number
+			}
+		}
+	}
+	
 	public boolean downloadFileFromShared(String encryptedFile, String destination) throws Exception{
 		Path encryptedFilePath = EFS_SHARED_ABS.resolve(encryptedFile).normalize();
-		Path metadataFilePath = encryptedFilePath.resolveSibling(encryptedFilePath.getFileName().toString().replace(".enc", ".meta"));
-		Path signatureFilePath = encryptedFilePath.resolveSibling(encryptedFilePath.getFileName().toString().replace(".enc", ".sgn"));
 		
-		if(!Files.exists(encryptedFilePath) || !Files.exists(metadataFilePath) || !Files.exists(signatureFilePath)) {
-			System.out.println("The specified file doesn't exist or is incomplete!");
-			return false;
+		EFSObject object;
+		try {
+			if(!encryptedFilePath.startsWith(EFS_SHARED_ABS)) {
+				throw new NoSuchFileException(encryptedFile);
+			}
+			object = EFSObject.open(encryptedFilePath);
+		} catch(NoSuchFileException e) {
+			object = null;
 		}
-		
-		Path destinationPath = userHostDir.resolve(destination).normalize();
-		
-		// reading and parsing metadata
-		List<String> metadataLines = Files.readAllLines(metadataFilePath, StandardCharsets.UTF_8);
-		if(metadataLines.size() < 4) {
-			throw new IllegalArgumentException("Metadata is incomplete or corrupted!");
+		if(object == null || object.getSignature() == null) {
+			console.println("The specified file doesn't exist or is incomplete!");
+			return false;
 		}
 		
-		StringBuilder ciphertextBuilder = new StringBuilder();
-		for(int i=0; i<metadataLines.size(); i++) {
-			ciphertextBuilder.append(metadataLines.get(i));
+		if(object.getMetadata().hasKeySlots() && object.getMetadata().getWrappedKeys(getFingerprint()) == null) {
+			console.println("The specified file isn't shared with you!");
+			return false;
 		}
-		String metadata = ciphertextBuilder.toString();
 		
-		int algIndex = metadata.indexOf("algorithm=");
-		int ivIndex = metadata.indexOf("iv=");
-		int keyIndex = metadata.indexOf("key=");
-		int senderIndex = metadata.indexOf("sender=");
+		Path destinationPath = userHostDir.resolve(destination).normalize();
 		
-		if(algIndex == -1 || ivIndex == -1 || keyIndex == -1 || senderIndex == -1) {
+		// reading and parsing metadata
+		KeyEnvelope keys = unwrapKeys(object);
+		String sender = keys.getSender();
+		if(sender == null) {
 			throw new IllegalArgumentException("Metadata does not contain a key field.");
 		}
 		
-		String encryptedAlg = metadata.substring(algIndex + "algoritmh=".length(), ivIndex).trim();
-		String algorithm = eu.decryptRSA(encryptedAlg, user.getPrivateKeyPath());
-		String encryptedIV = metadata.substring(ivIndex + "iv=".length(), keyIndex).trim();
-		String iv = eu.decryptRSA(encryptedIV, user.getPrivateKeyPath());
-		String encryptedKey = metadata.substring(keyIndex + "key=".length(), senderIndex).trim();
-		String key = eu.decryptRSA(encryptedKey, user.getPrivateKeyPath());
-		String encryptedSender = metadata.substring(senderIndex + "sender=".length()).trim();
-		String sender = eu.decryptRSA(encryptedSender, user.getPrivateKeyPath());
-		
-		Path senderPublicKeyPath = EFSystem.getPublicKey(sender);
-		if(senderPublicKeyPath == null) {
-			System.out.println("Invalid action!");
+		PublicKey senderPublicKey = EFSystem.getPublicKey(sender);
+		if(senderPublicKey == null) {
+			console.println("Invalid action!");
 			return false;
 		}
 		
-		String decryptedFile = eu.decryptAES(encryptedFilePath, destinationPath, key, algorithm, iv);
-		Path decryptedFilePath = destinationPath.resolve(Path.of(decryptedFile).getFileName());
-		
-		// verify signature
-		boolean isSignatureValid = eu.verifySignature(decryptedFilePath,signatureFilePath,senderPublicKeyPath);		
-		if(!isSignatureValid) {
-			System.out.println("The file might have been tampered with!");
+		// signature is verified on the same pass that decrypts the file, the file is released only if it holds
+		Signature signature = EncryptionUtil.newVerifier(senderPublicKey);
+		byte[] signatureBytes = object.getSignature();
+		Path decryptedFilePath = decryptVerified(object, keys, destinationPath, PlaintextObserver.of(signature), () -> EncryptionUtil.verify(signature, signatureBytes));
+		if(decryptedFilePath == null) {
+			console.println("The file might have been tampered with! Nothing was downloaded.");
 			return false;
 		}
 		
-		System.out.println();
-		System.out.println("File from user " + sender);
-		System.out.println("File successfully downloaded to " + decryptedFile);
+		// shares with a single envelope don't say who they're for, one that opened goes into the inbox
+		String sharedName = EFS_SHARED_ABS.relativize(encryptedFilePath).toString().replace(File.separatorChar, '/');
+		if(!object.getMetadata().hasKeySlots()) {
+			inbox.add(List.of(getFingerprint()), sharedName);
+		}
+		sharedAdded(sharedName);
+		
+		console.println();
+		console.println("File from user " + sender);
+		console.println("File successfully downloaded to " + decryptedFilePath);
 		return true;
 	}
 	
+	private static boolean isPlainFileName(String fileName) {
+		return fileName != null && !fileName.isBlank() && !fileName.equals(".") && !fileName.equals("..")
+			&& fileName.indexOf('/') == -1 && fileName.indexOf('\\') == -1;
+	}
+	
 	// -------------------------------------------------------------
 	
 	public void createDirectory(String parentDir, String dirName) throws Exception{
 		Path parentPath = rootDir.resolve(parentDir).normalize();
 		if(!parentPath.startsWith(rootDir)) {
-			System.out.println("Invalid path! You can only create directories inside your root directory.");
+			console.println("Invalid path! You can only create directories inside your root directory.");
 			return;
 		}
 		
 		Path dirPath = parentPath.resolve(dirName);
 		if(!Files.exists(dirPath)) {
 			Files.createDirectories(dirPath);
-			System.out.println("Directory '" + dirPath + "' created");
+			updateManifest(manifest -> manifest.putDirectory(rootDir.relativize(dirPath)));
+			console.println("Directory '" + dirPath + "' created");
 		} else {
-			System.out.println("Specified directory already exists!");
+			console.println("Specified directory already exists!");
 		}
 	}
 		
-	public void deleteDirectory(String dirPath) throws Exception{
+	// false if the directory isn't there or any path under it couldn't be deleted
+	public boolean deleteDirectory(String dirPath) throws Exception{
 		Path directory = rootDir.resolve(dirPath).normalize();
 		
 		if(!directory.startsWith(rootDir)) {
-			System.out.println("Invalid path! You can only delete directories inside your root directory.");
-			return;
+			console.println("Invalid path! You can only delete directories inside your root directory.");
+			return false;
 		}
 		
 		if(directory.equals(rootDir)) {
-			System.out.println("You cannot delete the root directory!");
-			return;
+			console.println("You cannot delete the root directory!");
+			return false;
 		}
 		
 		if(!Files.exists(directory)) {
-			System.out.println("Directory doesn't exist!");
-			return;
+			console.println("Directory doesn't exist!");
+			return false;
 		}
 		
-		Files.walk(directory).sorted(Comparator.reverseOrder()).forEach(path -> {
-			try {
-				Files.delete(path);
-			} catch(Exception e) {
-				System.err.println("Failed to delete '" + path + "'");
-			}
-		});
+		// chunks of deduplicated files are released once the files are gone
+		boolean deduplicated = Files.exists(ChunkStore.storeDir(user.getUsername()));
+		List<ChunkStore.Ref> released = new ArrayList<>();
+		List<Path> failed = new ArrayList<>();
+		
+		try(Stream<Path> paths = Files.walk(directory)) {
+			paths.sorted(Comparator.reverseOrder()).forEach(path -> {
+				try {
+					List<ChunkStore.Ref> refs = deduplicated && path.getFileName().toString().endsWith(".enc") ? chunkRefsOf(path) : List.of();
+					Files.delete(path);
+					released.addAll(refs);
+				} catch(Exception e) {
+					console.println("Failed to delete '" + path + "'");
+					failed.add(path);
+				}
+			});
+		}
 		
-		System.out.println("Directory '" + directory + "' deleted successfully");
+		if(!released.isEmpty()) {
+			getChunkStore().release(released);
+		}
+		if(!failed.isEmpty()) {
+			// what is left is picked up by the manifest's watcher
+			console.println("Directory '" + directory + "' was only partly deleted.");
+			return false;
+		}
+		updateManifest(manifest -> manifest.remove(rootDir.relativize(directory)));
+		console.println("Directory '" + directory + "' deleted successfully");
+		return true;
 	}
 }
@@ -3,18 +3,18 @@ package system;
 import java.util.*;
 import java.io.*;
 import java.nio.file.*;
+import java.security.*;
 import utl.*;
 
 public class EFSystem {
 	public static Scanner scan = new Scanner(System.in);
 	private static String propertiesFile = "src/utl/paths.properties";
 	public static PropertyReader pr = new PropertyReader(propertiesFile);
-	public static Path allUsersFilePath = Path.of(pr.getProperty("USERS_DIR") + "users.dat");
-	public static Map<String, User> EFSusers = new HashMap<>();
-	public static String currentUsername = "";
+	public static UserStore EFSusers = openUserStore();
+	private static PublicKeyCache publicKeys = new PublicKeyCache();
 	
 	// register
-	public static boolean register() {		
+	public static String register() {		
 		System.out.print("Enter username you would like to use: ");
 		String username = scan.nextLine();
 		
@@ -27,39 +27,47 @@ public class EFSystem {
 				username = scan.nextLine();
 			} else {
 				System.out.println("Goodbye!");
-				return false;
+				return null;
 			}
 		}
 		
 		System.out.print("Enter password: ");
 		String enteredPassword = scan.nextLine();
-		String hashPass = EncryptionUtil.hashPassword(enteredPassword);
+		String hashPass;
+		try {
+			hashPass = PasswordHasher.hash(enteredPassword);
+		} catch(Exception e) {
+			System.out.println("Unable to generate password hash...");
+			return null;
+		}
 		
 		// digital certificate and keys
 		String certName = CertificateUtil.assignUserCertificate(username);
 		if(certName == null) {
-			return false;
+			return null;
 		}
 		
 		Path certPath = Path.of(pr.getProperty("CLIENT_CERT_DIR"), certName);
 		Path keyPath = Path.of(pr.getProperty("CLIENT_KEY_DIR"), certName.replace(".crt", ".key"));
 
 		User newUser = new User(username,hashPass,certPath,keyPath);
-		EFSusers = loadUsers();
-		EFSusers.put(username, newUser);
-		newUser.setPublicKeyPath();
-		saveUsers();
+		try {
+			EFSusers.put(newUser);
+		} catch(IOException e) {
+			System.err.println("Error saving users...");
+			e.printStackTrace();
+			return null;
+		}
+		publicKeys.invalidate(username);
 		
 		System.out.println("User " + username + " registered successfully!");
-		currentUsername = username;
-		return true;
+		return username;
 	}
 	
 	// login
-	public static boolean login() {
+	public static String login() {
 		String username = "";
 		boolean userok = false;
-		EFSusers = loadUsers();
 		
 		while(!userok) {
 			System.out.print("Username: ");
@@ -77,7 +85,7 @@ public class EFSystem {
 				String in = scan.nextLine().trim();
 				if(!"y".equalsIgnoreCase(in)) {
 					System.out.println("Goodbye!");
-					return false;
+					return null;
 				}
 				
 			} else {
@@ -86,17 +94,10 @@ public class EFSystem {
 		}
 		
 		// checking for certificate
-		User user = EFSusers.get(username);
-		Path certPath = user.getDigitalCert();
-		if(!Files.exists(certPath)) {
-			System.out.println("Error: client certificate not found!");
-			return false;
-		}
-		
-		// certificate validation
-		if(!CertificateUtil.validateCertificate(certPath.toString())) {
-			System.out.println("Certificate isn't valid!");
-			return false;
+		String certificateProblem = checkCertificate(EFSusers.get(username));
+		if(certificateProblem != null) {
+			System.out.println(certificateProblem);
+			return null;
 		}
 		
 		// checking if password is correct
@@ -105,8 +106,7 @@ public class EFSystem {
 			System.out.print("Password: ");
 			if(verifyPassword(username, scan.nextLine())) {
 				System.out.println("Login successful!");
-				currentUsername = username;
-				return true;
+				return username;
 			} else {
 				System.out.println("Incorrect password! Try again...");
 				tmp++;
@@ -114,96 +114,72 @@ public class EFSystem {
 		}
 		
 		System.out.println("Too many failed attempts. Login failed.");
-		return false;
+		return null;
 		
 	}
 	
+	// certificate checks of a login (console or daemon), null if the certificate can be used
+	public static String checkCertificate(User user) {
+		Path certPath = user.getDigitalCert();
+		if(!Files.exists(certPath)) {
+			return "Error: client certificate not found!";
+		}
+		
+		// certificate validation
+		CertificateUtil.Status status = CertificateUtil.validateCertificate(certPath.toString());
+		if(status != CertificateUtil.Status.VALID) {
+			return "Certificate isn't valid! [reason: " + status.getReason() + "]";
+		}
+		return null;
+	}
+	
 	// -------------------------------------------------------------
 	// private methods:
 	
 	private static boolean checkIfUsernameExists(String username) {
-		if(EFSusers.containsKey(username))
+		if(EFSusers.contains(username))
 			return true;
 		else
 			return false;
 	}
 	
-	private static boolean verifyPassword(String username, String password) {
+	public static boolean verifyPassword(String username, String password) {
 	 	User user = EFSusers.get(username);
 	 	String userPass = user.getPasswordHash();
 	 	if(userPass==null)
 	 		return false;
 	 	
-	 	String salt = userPass.split("\\$")[2];
-	 	String hashedPassword = EncryptionUtil.hashPasswordWithSalt(password,salt);
-        return hashedPassword.equals(userPass);
+	 	try {
+	 		if(!PasswordHasher.verify(password, userPass)) {
+	 			return false;
+	 		}
+	 		
+	 		// older MD5-crypt hashes (or fewer iterations) are replaced now that the password is known
+	 		if(PasswordHasher.needsRehash(userPass)) {
+	 			user.setPasswordHash(PasswordHasher.hash(password));
+	 			EFSusers.put(user);
+	 		}
+	 		return true;
+	 	} catch(Exception e) {
+	 		System.out.println(e.getMessage());
+	 		return false;
+	 	}
     }
 	
-	public static Path getPublicKey(String username) throws Exception{
+	// public key from the user's certificate, parsed once and then served from memory
+	public static PublicKey getPublicKey(String username) throws Exception{
 		User user = EFSusers.get(username);
 		if(user == null) {
 			return null;
 		}
-		Path certPath = user.getDigitalCert();
-		
-		String certPathStr = EncryptionUtil.convertToWSLPath(certPath).toString();		
-		String certName = certPath.getFileName().toString().replace(".crt", "_public.key");
-		
-		ProcessBuilder pb = new ProcessBuilder("wsl", "openssl", "x509", "-in", certPathStr, "-pubkey", "-noout");
-		pb.redirectErrorStream(true);
-		Process process = pb.start();
-		
-		try(BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()))){
-			StringBuilder publicKey = new StringBuilder();
-			String line;
-			while((line = reader.readLine()) != null) {
-				publicKey.append(line).append("\n");
-			}
-			
-			int exitCode = process.waitFor();
-			if(exitCode != 0) {
-				throw new RuntimeException("OpenSSL process failed with exit code " + exitCode + ". Output:\n" + publicKey);
-			}
-			
-			Path publicKeyDir = Path.of(pr.getProperty("PUBLIC_CLIENT_KEY_DIR"));
-			if(!Files.exists(publicKeyDir)) {
-	            Files.createDirectories(publicKeyDir);
-	        }
-			
-			Path publicKeyPath = publicKeyDir.resolve(certName);
-			Files.write(publicKeyPath, publicKey.toString().getBytes(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
-			
-			return publicKeyPath;
-		}
-	}
-	
-	public static void saveUsers() {
-		try {
-			Files.createDirectories(allUsersFilePath.getParent());
-		    
-			try (ObjectOutputStream oos = new ObjectOutputStream(Files.newOutputStream(allUsersFilePath))) {
-		    	oos.writeObject(EFSusers);
-		    }
-			
-		} catch (IOException e) {
-			System.err.println("Error saving users...");
-			e.printStackTrace();
-		}
+		return publicKeys.get(username, user.getDigitalCert());
 	}
 	
-	@SuppressWarnings("unchecked")
-	public static Map<String, User> loadUsers() {
+	private static UserStore openUserStore() {
 		try {
-		    if(!Files.exists(allUsersFilePath)) {
-		    	Files.createFile(allUsersFilePath);
-		        return new HashMap<>();
-		    }
-	
-		    try(ObjectInputStream ois = new ObjectInputStream(Files.newInputStream(allUsersFilePath))) {
-		        return (Map<String, User>) ois.readObject();
-		    }
-		} catch(Exception e) {
-			return new HashMap<>();
+			return UserStore.open(Path.of(pr.getProperty("USERS_DIR")));
+		} catch(IOException e) {
+			throw new UncheckedIOException("Couldn't open the user store", e);
 		}
 	}
 }
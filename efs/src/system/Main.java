@@ -4,13 +4,14 @@ import java.nio.file.*;
 import java.util.*;
 
 public class Main {
-	static {
-		EFSystem.loadUsers();
-	}
 	public static Scanner scan = new Scanner(System.in);
-	private static User currentUser = null;
 	
 	public static void main(String args[]) {
+		if(args.length > 0 && "--daemon".equals(args[0])) {
+			runDaemon();
+			return;
+		}
+		
 		System.out.println();
 		System.out.println("----------------------------------------");
 		System.out.println("WELCOME TO EFS - Encrypted File System!");
@@ -22,12 +23,14 @@ public class Main {
 			String input = scan.nextLine();
 			
 			if("l".equalsIgnoreCase(input)) {
-				if(EFSystem.login()) {
-					handleUserSession();
+				String username = EFSystem.login();
+				if(username != null) {
+					handleUserSession(username);
 				}
 			} else if("r".equalsIgnoreCase(input)) {
-				if(EFSystem.register()) {
-					handleUserSession();
+				String username = EFSystem.register();
+				if(username != null) {
+					handleUserSession(username);
 				}
 			} else if("q".equalsIgnoreCase(input)) {
 				System.out.println("Goodbye!");
@@ -36,14 +39,25 @@ public class Main {
 				System.out.println("Unsupported action!");
 			}
 		}
-		
-		currentUser = null;
-		EFSystem.saveUsers();
 	}
 	
-	private static void handleUserSession() {
-		EFSManager efsm = new EFSManager(EFSystem.currentUsername);
-		currentUser = EFSystem.EFSusers.get(EFSystem.currentUsername);
+	private static void runDaemon() {
+		int port = (int) EFSystem.pr.getLongProperty("DAEMON_PORT", 8765);
+		try {
+			new EFSDaemon(port).start();
+			System.out.println("EFS daemon listening on 127.0.0.1:" + port);
+		} catch(Exception e) {
+			System.err.println("Couldn't start the daemon: " + e.getMessage());
+		}
+	}
+	
+	private static void handleUserSession(String username) {
+		EFSManager efsm = new EFSManager(username);
+		User currentUser = EFSystem.EFSusers.get(username);
+		
+		System.out.println();
+		System.out.println("Welcome to your home EFS directory!");
+		efsm.listUserFiles();
 		
 		boolean loggedIn = true;
 		while(loggedIn) {
@@ -58,6 +72,9 @@ public class Main {
 			System.out.println("Add folder to your EFS folder		[7]");
 			System.out.println("Delete folder from your EFS folder	[8]");
 			System.out.println("Logout					[9]");
+			System.out.println("Upload folder to my EFS folder		[10]");
+			System.out.println("Download folder from my EFS folder	[11]");
+			System.out.println("Search files by name			[12]");
 			System.out.println("----------------------------------------");
 			
 			String choice = scan.nextLine();
@@ -111,9 +128,9 @@ public class Main {
 				case "5":
 					System.out.print("Enter path of the file you would like to upload to the SHARED: ");
 					String uploadFilePath5 = scan.nextLine();
-					System.out.print("Enter recipient's username: ");
-					String recipient = scan.nextLine();
-					efsm.addFileToShared(uploadFilePath5,recipient);
+					System.out.print("Enter recipients' usernames (separated by commas): ");
+					String recipients = scan.nextLine();
+					efsm.addFileToShared(uploadFilePath5,Arrays.asList(recipients.split(",")));
 					break;
 				case "6":
 					efsm.listSharedFiles();
@@ -159,8 +176,53 @@ public class Main {
 					String targetDir = scan.nextLine();
 					efsm.deleteDirectory(targetDir);
 					break;
+				case "10":
+					System.out.print("Enter path of the folder you would like to upload: ");
+					String uploadDirPath10 = scan.nextLine();
+					System.out.print("Enter destination path (inside your EFS HOME): ");
+					String destinationPath10 = scan.nextLine();
+					efsm.addDirectory(uploadDirPath10,destinationPath10);
+					break;
+				case "11":
+					efsm.listUserFiles();
+					System.out.println();
+					System.out.print("Enter path of the folder you would like to download (inside your EFS HOME): ");
+					String encryptedDirPath11 = scan.nextLine();
+					boolean validPath11 = false;
+					String destinationPath11 = null;
+					
+					while(!validPath11) {
+						System.out.print("Enter destination path for the download: ");
+						destinationPath11 = scan.nextLine();
+						
+						if(EFSManager.isProhibited(Paths.get(destinationPath11))) {
+							System.out.println("You cannot download files into the EFS system directory. Choose another destination [y/n]");
+							String choice11 = scan.nextLine();
+							if("y".equalsIgnoreCase(choice11)) {
+								continue;
+							} else {
+								System.out.println("Download cancelled.");
+								break;
+							}
+						} else {
+							validPath11 = true;
+						}
+					}
+					
+					if(validPath11) {
+						efsm.downloadDirectory(encryptedDirPath11,destinationPath11);
+					}
+					break;
+				case "12":
+					System.out.print("Enter the folder to search in (inside your EFS HOME, empty for everywhere): ");
+					String searchDir = scan.nextLine();
+					System.out.print("Enter name or pattern (e.g. q3 or *.pdf): ");
+					String searchPattern = scan.nextLine();
+					efsm.searchFiles(searchDir,searchPattern);
+					break;
 				case "9":
 					System.out.println("Logging out...");
+					efsm.logout();
 					loggedIn = false;
 					break;
 				default:
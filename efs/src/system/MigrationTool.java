@@ -0,0 +1,46 @@
+package system;
+
+import java.nio.file.*;
+import java.util.*;
+import java.util.stream.*;
+import utl.*;
+
+// one-time conversion of files stored as x.enc, x.meta and x.sgn into single objects (see EFSObject)
+// run with the EFS stopped, nothing is decrypted so no keys are needed
+public class MigrationTool {
+
+	public static void main(String args[]) {
+		Path root = Path.of(args.length > 0 ? args[0] : EFSystem.pr.getProperty("ROOT_BASE_ABS"));
+		if(!Files.isDirectory(root)) {
+			System.out.println("Invalid EFS root directory: '" + root + "'");
+			return;
+		}
+
+		int converted = 0;
+		int skipped = 0;
+		int failed = 0;
+
+		List<Path> encryptedFiles;
+		try(Stream<Path> paths = Files.walk(root)) {
+			encryptedFiles = paths.filter(path -> Files.isRegularFile(path) && path.getFileName().toString().endsWith(".enc")).toList();
+		} catch(Exception e) {
+			e.printStackTrace();
+			return;
+		}
+
+		for(Path encryptedFilePath : encryptedFiles) {
+			try {
+				if(EFSObject.migrate(encryptedFilePath)) {
+					converted++;
+				} else {
+					skipped++;
+				}
+			} catch(Exception e) {
+				System.out.println("Couldn't convert '" + encryptedFilePath + "': " + e.getMessage());
+				failed++;
+			}
+		}
+
+		System.out.println("Converted: " + converted + ", skipped: " + skipped + ", failed: " + failed);
+	}
+}
@@ -10,6 +10,7 @@ public class User implements Serializable{
 	private transient String homeDir = EFSystem.pr.getProperty("ROOT_BASE");
 	private transient Path digitalCertPath;
 	private transient Path privateKeyPath;
+	// no longer written (public keys come from the certificate), kept so older users.dat files still read
 	private transient Path publicKeyPath;
 	
 	private String certPathStr;
@@ -35,6 +36,10 @@ public class User implements Serializable{
 		return passwordHash;
 	}
 	
+	public void setPasswordHash(String passwordHash) {
+		this.passwordHash = passwordHash;
+	}
+	
 	public String getHomeDir() {
 		return homeDir;
 	}
@@ -47,18 +52,6 @@ public class User implements Serializable{
 		return privateKeyPath;
 	}
 	
-	public Path getPublicKeyPath() {
-		return publicKeyPath;
-	}
-	
-	public void setPublicKeyPath() {
-		try {
-			this.publicKeyPath = EFSystem.getPublicKey(username);
-		} catch(Exception e) {
-			e.printStackTrace();
-		}
-	}
-	
 	private void writeObject(ObjectOutputStream oos) throws IOException {
 	    oos.defaultWriteObject();
 	    
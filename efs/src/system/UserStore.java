@@ -0,0 +1,209 @@
+package system;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.*;
+import utl.*;
+
+// registered users as an append-only log (users.log) with every user indexed in memory
+// log: magic | format version | records, record: length (int) | username | password hash | cert | key | crc32 (int)
+// a later record for the same username replaces the earlier one, the log is rewritten without the replaced
+// records once they outnumber the live ones. a record cut short by a crash is dropped on the next open, a
+// damaged record anywhere else stops the open and leaves the log untouched.
+// users.dat (the serialized HashMap used before) is imported once and renamed to users.dat.imported
+public class UserStore {
+	private static final int COMPACT_MIN_RECORDS = 64;
+	private static final int MAX_RECORD_LENGTH = 4 * 65535;
+
+	private Path logPath;
+	private FileChannel log;
+	private ConcurrentHashMap<String, User> users = new ConcurrentHashMap<>();
+	private int records;
+
+	private UserStore(Path logPath) {
+		this.logPath = logPath;
+	}
+
+	public static UserStore open(Path usersDir) throws IOException {
+		Files.createDirectories(usersDir);
+		UserStore store = new UserStore(usersDir.resolve("users.log"));
+		store.load();
+
+		Path legacyPath = usersDir.resolve("users.dat");
+		if(Files.exists(legacyPath)) {
+			store.importLegacy(legacyPath);
+		}
+		return store;
+	}
+
+	public User get(String username) {
+		return users.get(username);
+	}
+
+	public boolean contains(String username) {
+		return users.containsKey(username);
+	}
+
+	// adds the user or replaces the stored one, durable when this returns
+	public synchronized void put(User user) throws IOException {
+		append(List.of(user));
+		users.put(user.getUsername(), user);
+		records++;
+
+		if(records >= COMPACT_MIN_RECORDS && records > users.size() * 2) {
+			compact();
+		}
+	}
+
+	// -------------------------------------------------------------
+
+	private void load() throws IOException {
+		if(!Files.exists(logPath)) {
+			writeLog(logPath, List.of());
+		}
+
+		long size = Files.size(logPath);
+		long position = StorageFormat.HEADER_LENGTH;
+		try(DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(logPath)))) {
+			if(StorageFormat.version(in.readNBytes(StorageFormat.HEADER_LENGTH)) != StorageFormat.USER_LOG) {
+				throw new IOException(logPath.getFileName() + " is not a user log.");
+			}
+			
+			while(true) {
+				byte[] record;
+				try {
+					int length = in.readInt();
+					if(length < 0 || length > MAX_RECORD_LENGTH) {
+						throw damaged(position);
+					}
+					record = new byte[length];
+					in.readFully(record);
+					CRC32 crc = new CRC32();
+					crc.update(record);
+					if(in.readInt() != (int) crc.getValue()) {
+						// only the last record can be a torn append, a bad one with records after it isn't
+						if(position + 4 + length + 4 != size) {
+							throw damaged(position);
+						}
+						break;
+					}
+				} catch(EOFException e) {
+					break;
+				}
+				User user = decode(record);
+				users.put(user.getUsername(), user);
+				records++;
+				position += 4 + record.length + 4;
+			}
+		}
+		
+		// cut short by a crash while appending
+		log = FileChannel.open(logPath, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		if(log.size() > position) {
+			log.truncate(position);
+			log.force(false);
+		}
+	}
+
+	private IOException damaged(long position) {
+		return new IOException(logPath.getFileName() + " is damaged at byte " + position + ", it was left as it is.");
+	}
+
+	private void importLegacy(Path legacyPath) throws IOException {
+		Map<String, User> legacyUsers;
+		try(ObjectInputStream ois = new ObjectInputStream(Files.newInputStream(legacyPath))) {
+			@SuppressWarnings("unchecked")
+			Map<String, User> read = (Map<String, User>) ois.readObject();
+			legacyUsers = read;
+		} catch(EOFException e) {
+			// empty file created by the old loadUsers()
+			legacyUsers = Map.of();
+		} catch(ClassNotFoundException e) {
+			throw new IOException("Couldn't import " + legacyPath.getFileName(), e);
+		}
+
+		// users registered after an earlier import win over the old copy
+		List<User> imported = legacyUsers.values().stream().filter(user -> !users.containsKey(user.getUsername())).toList();
+		synchronized(this) {
+			append(imported);
+			for(User user : imported) {
+				users.put(user.getUsername(), user);
+			}
+			records += imported.size();
+		}
+		Files.move(legacyPath, legacyPath.resolveSibling("users.dat.imported"), StandardCopyOption.REPLACE_EXISTING);
+		System.out.println("Imported " + imported.size() + " users from " + legacyPath.getFileName());
+	}
+
+	private void append(List<User> batch) throws IOException {
+		if(batch.isEmpty()) {
+			return;
+		}
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try(DataOutputStream out = new DataOutputStream(bytes)) {
+			for(User user : batch) {
+				writeRecord(out, user);
+			}
+		}
+
+		ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+		long position = log.size();
+		while(buffer.hasRemaining()) {
+			position += log.write(buffer, position);
+		}
+		log.force(false);
+	}
+
+	private void compact() throws IOException {
+		Path tmpPath = logPath.resolveSibling(logPath.getFileName() + ".tmp");
+		writeLog(tmpPath, users.values());
+
+		log.close();
+		Files.move(tmpPath, logPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		log = FileChannel.open(logPath, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		records = users.size();
+	}
+
+	private static void writeLog(Path path, Collection<User> content) throws IOException {
+		try(FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)))) {
+			out.write(StorageFormat.header(StorageFormat.USER_LOG));
+			for(User user : content) {
+				writeRecord(out, user);
+			}
+			out.flush();
+			channel.force(true);
+		}
+	}
+
+	private static void writeRecord(DataOutputStream out, User user) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try(DataOutputStream record = new DataOutputStream(bytes)) {
+			record.writeUTF(user.getUsername());
+			record.writeUTF(user.getPasswordHash());
+			record.writeUTF(user.getDigitalCert().toString());
+			record.writeUTF(user.getPrivateKeyPath().toString());
+		}
+		byte[] data = bytes.toByteArray();
+		CRC32 crc = new CRC32();
+		crc.update(data);
+
+		out.writeInt(data.length);
+		out.write(data);
+		out.writeInt((int) crc.getValue());
+	}
+
+	private static User decode(byte[] record) throws IOException {
+		try(DataInputStream in = new DataInputStream(new ByteArrayInputStream(record))) {
+			String username = in.readUTF();
+			String passwordHash = in.readUTF();
+			Path certPath = Path.of(in.readUTF());
+			Path keyPath = Path.of(in.readUTF());
+			return new User(username, passwordHash, certPath, keyPath);
+		}
+	}
+}
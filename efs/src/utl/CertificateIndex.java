@@ -0,0 +1,144 @@
+package utl;
+
+import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.*;
+import java.security.cert.*;
+import java.util.*;
+import java.util.stream.*;
+import javax.naming.ldap.*;
+
+// common name -> certificates of CLIENT_CERT_DIR and the set of certificates already given to users
+// cn_index.txt holds certName=CN lines and only grows: the directory is listed again only when its mtime
+// changes and only certificates missing from the index are parsed. assigned_certs.txt (username=certName)
+// is read again only when it was changed by someone else
+public class CertificateIndex {
+	public static final String INDEX_FILE = "cn_index.txt";
+	public static final String ASSIGNED_FILE = "assigned_certs.txt";
+
+	private Path certDir;
+	private Path indexFile;
+	private Path assignedFile;
+
+	private Map<String, String> commonNames = new HashMap<>();			// certName -> CN
+	private Map<String, SortedSet<String>> certificates = new HashMap<>();	// CN -> certNames
+	private FileTime dirModified;
+
+	private Set<String> assigned = new HashSet<>();
+	private FileTime assignedModified;
+
+	public CertificateIndex(Path certDir) {
+		this.certDir = certDir;
+		this.indexFile = certDir.resolve(INDEX_FILE);
+		this.assignedFile = certDir.resolve(ASSIGNED_FILE);
+	}
+
+	// certificates issued to the common name, in name order
+	public synchronized List<String> certificatesFor(String commonName) throws IOException {
+		refreshCertificates();
+		return List.copyOf(certificates.getOrDefault(commonName, Collections.emptySortedSet()));
+	}
+
+	public synchronized boolean isAssigned(String certName) throws IOException {
+		refreshAssigned();
+		return assigned.contains(certName);
+	}
+
+	public synchronized void assign(String username, String certName) throws IOException {
+		refreshAssigned();
+		Files.write(assignedFile, List.of(username + "=" + certName), StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+		assigned.add(certName);
+		assignedModified = Files.getLastModifiedTime(assignedFile);
+	}
+
+	// -------------------------------------------------------------
+
+	private void refreshCertificates() throws IOException {
+		FileTime modified = Files.getLastModifiedTime(certDir);
+		if(modified.equals(dirModified)) {
+			return;
+		}
+
+		if(dirModified == null && Files.exists(indexFile)) {
+			for(String line : Files.readAllLines(indexFile)) {
+				int separator = line.indexOf('=');
+				if(separator > 0) {
+					add(line.substring(0, separator), line.substring(separator + 1));
+				}
+			}
+		}
+
+		List<String> certNames;
+		try(Stream<Path> files = Files.list(certDir)) {
+			certNames = files.map(path -> path.getFileName().toString()).filter(name -> name.endsWith(".crt")).toList();
+		}
+
+		// removed certificates drop out of memory, the file keeps them until it is rebuilt
+		Set<String> present = new HashSet<>(certNames);
+		for(String certName : List.copyOf(commonNames.keySet())) {
+			if(!present.contains(certName)) {
+				certificates.get(commonNames.remove(certName)).remove(certName);
+			}
+		}
+
+		List<String> newEntries = new ArrayList<>();
+		for(String certName : certNames) {
+			if(commonNames.containsKey(certName)) {
+				continue;
+			}
+			String commonName = readCommonName(certDir.resolve(certName));
+			if(commonName != null) {
+				add(certName, commonName);
+				newEntries.add(certName + "=" + commonName);
+			}
+		}
+		if(!newEntries.isEmpty()) {
+			Files.write(indexFile, newEntries, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+		}
+
+		// read after the index is written, creating it changes the directory too
+		dirModified = Files.getLastModifiedTime(certDir);
+	}
+
+	private void refreshAssigned() throws IOException {
+		if(!Files.exists(assignedFile)) {
+			assigned.clear();
+			assignedModified = null;
+			return;
+		}
+
+		FileTime modified = Files.getLastModifiedTime(assignedFile);
+		if(modified.equals(assignedModified)) {
+			return;
+		}
+
+		assigned.clear();
+		for(String line : Files.readAllLines(assignedFile)) {
+			int separator = line.indexOf('=');
+			if(separator > 0) {
+				assigned.add(line.substring(separator + 1).trim());
+			}
+		}
+		assignedModified = modified;
+	}
+
+	private void add(String certName, String commonName) {
+		commonNames.put(certName, commonName);
+		certificates.computeIfAbsent(commonName, cn -> new TreeSet<>()).add(certName);
+	}
+
+	// null if the file isn't a readable certificate
+	private static String readCommonName(Path certPath) {
+		try {
+			X509Certificate cert = KeyUtil.loadCertificate(certPath);
+			for(Rdn rdn : new LdapName(cert.getSubjectX500Principal().getName()).getRdns()) {
+				if("CN".equalsIgnoreCase(rdn.getType())) {
+					return rdn.getValue().toString();
+				}
+			}
+		} catch(Exception e) {
+			System.out.println("Couldn't read certificate " + certPath.getFileName() + ": " + e.getMessage());
+		}
+		return null;
+	}
+}
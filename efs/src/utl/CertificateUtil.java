@@ -2,14 +2,46 @@ package utl;
 
 import java.io.*;
 import java.util.*;
-import java.util.stream.*;
 import java.nio.file.*;
+import java.nio.file.attribute.*;
+import java.security.cert.*;
 import system.EFSystem;
 
 public class CertificateUtil {
-	private static boolean revoked = false;
-	private static boolean expired = false;
-	private static boolean diffCA = false;
+	public enum Status {
+		VALID("valid"),
+		REVOKED("revoked"),
+		UNKNOWN_CA("signed by another CA"),
+		EXPIRED("expired"),
+		CRL_EXPIRED("CRL has expired"),
+		INVALID("unspecified");
+		
+		private final String reason;
+		
+		Status(String reason) {
+			this.reason = reason;
+		}
+		
+		public String getReason() {
+			return reason;
+		}
+	}
+	
+	// CA certificate and CRL as parsed from disk, replaced as a whole when either file changes
+	private static class TrustStore {
+		private final FileTime caModified;
+		private final FileTime crlModified;
+		private final TrustAnchor anchor;
+		private final X509CRL crl;
+		
+		private TrustStore(FileTime caModified, FileTime crlModified, TrustAnchor anchor, X509CRL crl) {
+			this.caModified = caModified;
+			this.crlModified = crlModified;
+			this.anchor = anchor;
+			this.crl = crl;
+		}
+	}
+	private static volatile TrustStore trustStore;
 	
 	public static File clientCertDir = new File(EFSystem.pr.getProperty("CLIENT_CERT_DIR"));
 	static {
@@ -17,135 +49,99 @@ public class CertificateUtil {
 			clientCertDir.mkdir();
 		}
 	}
+	private static CertificateIndex certificateIndex = new CertificateIndex(clientCertDir.toPath());
 	
 	public static String assignUserCertificate(String username) {
-		Path certDir = Path.of(EFSystem.pr.getProperty("CLIENT_CERT_DIR"));
-		Path assignedCertsFile = certDir.resolve("assigned_certs.txt");
-
 		// assigning one of the certs to the user
-		try(Stream<Path> files = Files.list(certDir)) {
-			List<String> assignedCerts = Files.exists(assignedCertsFile) ? Files.readAllLines(assignedCertsFile) : List.of();
-			
-			for(Path cert: files.toList()) {
-				if(cert.toString().endsWith(".crt")) {
-					String certName = cert.getFileName().toString();
-					String commonName = getCommonName(cert);
-					
-					// checking if the common name is matching
-					if(commonName == null || !commonName.equals(username)) {
-						continue;
-					}
-					
-					boolean assigned = assignedCerts.stream().anyMatch(line -> line.endsWith("=" + certName));
-					if(!assigned) {
-						if(!validateCertificate(certName)) {
-		                    System.out.print("Skipping invalid certificate: " + certName);
-		                    if(revoked)
-		                    	System.out.println(" [reason: revoked]");
-		                    else if(diffCA) {
-		                    	System.out.println(" [reason: signed by another CA]");
-		                    } else if(expired) {
-		                    	System.out.println(" [reason: expired]");
-		                    } else {
-		                    	System.out.println(" [reason: unspecified]");
-		                    }
-		                    continue;
-		                }
-						String entry = username + "=" + certName;
-						Files.write(assignedCertsFile, List.of(entry), StandardOpenOption.CREATE, StandardOpenOption.APPEND);
-						System.out.println("Certificate " + certName + " assigned to user " + username);
-						EFSystem.saveUsers();
-						return certName;
-					}
+		try {
+			for(String certName : certificateIndex.certificatesFor(username)) {
+				if(certificateIndex.isAssigned(certName)) {
+					continue;
 				}
+				
+				Status status = validateCertificate(certName);
+				if(status != Status.VALID) {
+                    System.out.println("Skipping invalid certificate: " + certName + " [reason: " + status.getReason() + "]");
+                    continue;
+                }
+				certificateIndex.assign(username, certName);
+				System.out.println("Certificate " + certName + " assigned to user " + username);
+				return certName;
 			}
 		} catch(Exception e) {
 			e.printStackTrace();
 		}
 		
 		System.out.println("No valid certificate found for user " + username + ". Registration failed.");
-		EFSystem.saveUsers();
 		return null;
 	}
 	
-	public static boolean validateCertificate(String certName) {
-		Path caFilePath = Path.of(EFSystem.pr.getProperty("CA_CERT_PATH"));
-		Path crlFilePath = Path.of(EFSystem.pr.getProperty("CRL_PATH"));
+	public static Status validateCertificate(String certName) {
 		Path userCert = Path.of(EFSystem.pr.getProperty("CLIENT_CERT_DIR")).resolve(certName);
 		
 		try {
-			ProcessBuilder pb = new ProcessBuilder("wsl", "openssl", "verify", "-CAfile", EncryptionUtil.convertToWSLPath(caFilePath), "-crl_check", "-CRLfile", EncryptionUtil.convertToWSLPath(crlFilePath), EncryptionUtil.convertToWSLPath(userCert));
+			TrustStore trust = getTrustStore();
+			X509Certificate cert = KeyUtil.loadCertificate(userCert);
+			
+			// chain and validity period, revocation is checked against the cached CRL below
+			PKIXParameters parameters = new PKIXParameters(Set.of(trust.anchor));
+			parameters.setRevocationEnabled(false);
+			CertPath certPath = CertificateFactory.getInstance("X.509").generateCertPath(List.of(cert));
 			
-			pb.redirectErrorStream(true);
-	        Process process = pb.start();
-	        
-	        String line;
-	        StringBuilder outputBuilder = new StringBuilder();
-	        try(BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
-	            while((line = reader.readLine()) != null) {
-	                outputBuilder.append(line).append("\n");
-	            }
-	        }
-	        
-	        process.waitFor();
-	        String output = outputBuilder.toString().trim().toLowerCase();
-	        
-	        if(output.contains("revoked")) {
-	        	revoked = true;
-	        	diffCA=false;
-	        	expired=false;
-	            return false;
-	        } else if(output.contains("unable to get local issuer certificate")) {
-	        	diffCA = true;
-	        	revoked = false;
-	        	expired=false;
-	        	return false;
-	        } else if(output.contains("expired")) {
-	        	expired = true;
-	        	revoked = false;
-	        	diffCA=false;
-	        	return false;
-	        } else if(output.contains(" ok")) {
-	            return true;
-	        } else {
-	        	return false;
-	        }
+			Status status = Status.VALID;
+			try {
+				CertPathValidator.getInstance("PKIX").validate(certPath, parameters);
+			} catch(CertPathValidatorException e) {
+				CertPathValidatorException.Reason reason = e.getReason();
+				if(reason == CertPathValidatorException.BasicReason.EXPIRED || reason == CertPathValidatorException.BasicReason.NOT_YET_VALID) {
+					status = Status.EXPIRED;
+				} else if(reason == PKIXReason.NO_TRUST_ANCHOR || reason == CertPathValidatorException.BasicReason.INVALID_SIGNATURE) {
+					return Status.UNKNOWN_CA;
+				} else {
+					return Status.INVALID;
+				}
+			}
+			
+			if(trust.crl.isRevoked(cert)) {
+				return Status.REVOKED;
+			}
+			if(status == Status.VALID && trust.crl.getNextUpdate() != null && trust.crl.getNextUpdate().before(new Date())) {
+				return Status.CRL_EXPIRED;
+			}
+			return status;
 		} catch(Exception e) {
-			System.out.println();
+			System.out.println("Certificate validation failed: " + e.getMessage());
 		}
 		
-		return false;
+		return Status.INVALID;
 	}
 	
-	private static String getCommonName(Path certPath) {
-		try {
-			ProcessBuilder pb = new ProcessBuilder("wsl", "openssl", "x509", "-in", EncryptionUtil.convertToWSLPath(certPath), "-noout", "-subject");
-			String output = EncryptionUtil.executeProcess(pb).trim();
-			
-			if(output == null || output.isEmpty()) {
-	            throw new RuntimeException("Failed to retrieve certificate subject.");
-	        }
-			
-			if(output.startsWith("subject=")) {
-				output = output.substring("subject=".length());
+	// reloads the CA certificate and CRL only if one of them changed on disk
+	private static TrustStore getTrustStore() throws Exception{
+		Path caFilePath = Path.of(EFSystem.pr.getProperty("CA_CERT_PATH"));
+		Path crlFilePath = Path.of(EFSystem.pr.getProperty("CRL_PATH"));
+		FileTime caModified = Files.getLastModifiedTime(caFilePath);
+		FileTime crlModified = Files.getLastModifiedTime(crlFilePath);
+		
+		TrustStore trust = trustStore;
+		if(trust != null && trust.caModified.equals(caModified) && trust.crlModified.equals(crlModified)) {
+			return trust;
+		}
+		
+		synchronized(CertificateUtil.class) {
+			trust = trustStore;
+			if(trust != null && trust.caModified.equals(caModified) && trust.crlModified.equals(crlModified)) {
+				return trust;
 			}
 			
-			String parts[] = output.split(",");
-			for(String part : parts) {
-				part = part.trim();
-				
-				if(part.startsWith("CN")) {
-					String cnParts[] = part.split("=");
-					if(cnParts.length >= 2) {
-						return cnParts[1].trim();
-					}
-				}
-			}
+			X509Certificate ca = KeyUtil.loadCertificate(caFilePath);
+			X509CRL crl = KeyUtil.loadCRL(crlFilePath);
+			// a CRL not issued by our CA would silently let revoked certificates through
+			crl.verify(ca.getPublicKey());
 			
-		} catch(Exception e) {
-			e.printStackTrace();
+			trust = new TrustStore(caModified, crlModified, new TrustAnchor(ca, null), crl);
+			trustStore = trust;
+			return trust;
 		}
-		
-		return null;
 	}
 }
@@ -0,0 +1,566 @@
+package utl;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.security.*;
+import java.util.*;
+import java.util.zip.CRC32;
+import javax.crypto.*;
+import javax.crypto.spec.*;
+
+import system.EFSystem;
+
+// deduplicated storage of one user (DEDUP=1): plain text is cut where a rolling (gear) hash of the content
+// says so, so an edit only changes the chunks around it, and every distinct chunk is stored once
+// - chunk key = HMAC(user secret, 1 | SHA-256(chunk)), chunk id = HMAC(user secret, 2 | SHA-256(chunk)):
+//   same content gives the same chunk only inside one user's store
+// - chunk file <id[0..2]>/<id>: magic | format version | AES-256-GCM of the chunk (zero nonce, the key is
+//   used for this content only, id as additional data)
+// - the object's payload becomes magic | CHUNK_LIST | container of the list (id | key | length per chunk)
+//   under the file key, so reading a file needs only its file key, never the user secret
+// - refs.log: magic | format version | wrapped secret length (int) | wrapped secret | records
+//   record: id | reference count change (int) | crc32 (int); a chunk is deleted when its count drops to 0
+//   and the log is rewritten as one record per chunk once it has twice as many records as chunks.
+//   a record cut short by a crash is dropped on the next open, a damaged one anywhere else stops the open.
+//   chunks of objects deleted outside EFS are never released. sessions of one user share the open store,
+//   a lock on .lock keeps other processes out while it is open
+public class ChunkStore implements Closeable {
+	public static final int MIN_CHUNK = 16 * 1024;
+	public static final int MAX_CHUNK = 256 * 1024;
+	private static final long BOUNDARY_MASK = (1L << 16) - 1;		// a cut every 64 KiB on average
+	private static final int ID_LENGTH = 32;
+	private static final int KEY_LENGTH = 32;
+	private static final int TAG_LENGTH = 16;
+	private static final int REF_RECORD_LENGTH = ID_LENGTH + 4 + 4;
+	private static final int COMPACT_MIN_RECORDS = 1024;
+
+	// fixed seed: boundaries have to fall in the same places in every run
+	private static final long[] GEAR = new long[256];
+	static {
+		Random random = new Random(0x45465343L);
+		for(int i = 0; i < GEAR.length; i++) {
+			GEAR[i] = random.nextLong();
+		}
+	}
+
+	public record Ref(byte[] id, byte[] key, int length) {}
+
+	// one instance per store in the process, shared by every session of the user
+	private static final Map<Path, ChunkStore> opened = new HashMap<>();
+
+	private Path dir;
+	private Path logPath;
+	private FileChannel log;
+	private byte[] wrappedSecret;
+	private SecretKeySpec secret;
+	private Map<String, Integer> counts = new HashMap<>();
+	private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+	private int records;
+	private int handles;
+	// held while the store is open, another process would keep counts of its own
+	private FileChannel lockChannel;
+
+	private ChunkStore(Path dir) {
+		this.dir = dir;
+		this.logPath = dir.resolve("refs.log");
+	}
+
+	public static Path storeDir(String username) {
+		return Path.of(EFSystem.pr.getProperty("ROOT_BASE_ABS"), ".chunks", username);
+	}
+
+	// -------------------------------------------------------------
+	// writing, needs the user secret
+
+	// the store of dir that's open already, or a new one. every open needs its own close()
+	public static ChunkStore open(Path dir, EncryptionUtil eu, PublicKey publicKey, PrivateKey privateKey) throws Exception{
+		dir = dir.toAbsolutePath().normalize();
+		synchronized(opened) {
+			ChunkStore store = opened.get(dir);
+			if(store != null) {
+				store.handles++;
+				return store;
+			}
+
+			Files.createDirectories(dir);
+			store = new ChunkStore(dir);
+			// the lock file stays put, refs.log itself is replaced by every compaction
+			store.lockChannel = FileChannel.open(dir.resolve(".lock"), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+			try {
+				if(store.lockChannel.tryLock() == null) {
+					throw new IOException("The chunk store is in use by another EFS process.");
+				}
+				if(Files.exists(store.logPath)) {
+					store.load(eu, privateKey);
+				} else {
+					KeyEnvelope keys = new KeyEnvelope("HmacSHA256", eu.generateKey("AES", 256), "", null);
+					store.wrappedSecret = eu.wrapKeys(keys, publicKey);
+					store.useSecret(keys);
+					store.writeLog();
+				}
+			} catch(Exception e) {
+				if(store.log != null) {
+					store.log.close();
+				}
+				store.lockChannel.close();
+				throw e;
+			}
+			store.handles = 1;
+			opened.put(dir, store);
+			return store;
+		}
+	}
+
+	// chunks the plain text into the store and writes the chunk list as the payload at offset of out
+	// if anything fails the references taken so far are dropped again, so no chunk is left counted for
+	// an object that was never written
+	public List<Ref> write(InputStream in, FileChannel out, long offset, byte[] fileKey, byte[] noncePrefix, PlaintextObserver observer) throws Exception{
+		List<Ref> refs = new ArrayList<>();
+		try {
+			byte[] buffer = new byte[MAX_CHUNK];
+			int filled = 0;
+			boolean eof = false;
+			try {
+				while(true) {
+					while(!eof && filled < buffer.length) {
+						int read = in.read(buffer, filled, buffer.length - filled);
+						if(read == -1) {
+							eof = true;
+						} else {
+							filled += read;
+						}
+					}
+					if(filled == 0) {
+						break;
+					}
+
+					int cut = boundary(buffer, filled);
+					if(observer != null) {
+						observer.update(ByteBuffer.wrap(buffer, 0, cut));
+					}
+					refs.add(put(buffer, cut));
+					System.arraycopy(buffer, cut, buffer, 0, filled - cut);
+					filled -= cut;
+				}
+			} finally {
+				Arrays.fill(buffer, (byte) 0);
+				flushRefs();
+			}
+
+			byte[] list = packList(refs);
+			try {
+				out.truncate(offset);
+				out.position(offset);
+				// not closed, that would close the caller's channel
+				OutputStream bufferedOut = new BufferedOutputStream(Channels.newOutputStream(out), CipherEngine.BUFFER_SIZE);
+				bufferedOut.write(StorageFormat.header(StorageFormat.CHUNK_LIST));
+				ChunkedContainer.encrypt(new ByteArrayInputStream(list), bufferedOut, fileKey, noncePrefix, null);
+				bufferedOut.flush();
+			} finally {
+				Arrays.fill(list, (byte) 0);
+			}
+			return refs;
+		} catch(Exception e) {
+			release(refs);
+			throw e;
+		}
+	}
+
+	// drops one reference of every chunk in the list (an object that was replaced or deleted)
+	public synchronized void release(List<Ref> refs) throws IOException {
+		for(Ref ref : refs) {
+			String id = HexFormat.of().formatHex(ref.id());
+			int count = counts.getOrDefault(id, 0) - 1;
+			if(count <= 0) {
+				counts.remove(id);
+				Files.deleteIfExists(chunkPath(dir, ref.id()));
+			} else {
+				counts.put(id, count);
+			}
+			addRecord(ref.id(), -1);
+		}
+		flushRefs();
+	}
+
+	// first chunk boundary of the buffer: where the rolling hash hits the mask, but not before
+	// MIN_CHUNK, or the end of what was read
+	private static int boundary(byte[] buffer, int length) {
+		if(length <= MIN_CHUNK) {
+			return length;
+		}
+		// a byte is shifted out of the 64 bit hash after 64 steps, so hashing can start just before MIN_CHUNK
+		long hash = 0;
+		for(int i = MIN_CHUNK - 64; i < length; i++) {
+			hash = (hash << 1) + GEAR[buffer[i] & 0xff];
+			if(i + 1 >= MIN_CHUNK && (hash & BOUNDARY_MASK) == 0) {
+				return i + 1;
+			}
+		}
+		return length;
+	}
+
+	private Ref put(byte[] buffer, int length) throws Exception{
+		byte[] digest = MessageDigest.getInstance("SHA-256").digest(Arrays.copyOf(buffer, length));
+		Mac mac = Mac.getInstance("HmacSHA256");
+		mac.init(secret);
+		mac.update((byte) 1);
+		byte[] key = mac.doFinal(digest);
+		mac.update((byte) 2);
+		byte[] id = mac.doFinal(digest);
+
+		// a new chunk is sealed outside the monitor, the check is only a hint
+		Path chunkPath = chunkPath(dir, id);
+		Path tmpPath = Files.exists(chunkPath) ? null : seal(buffer, length, id, key, chunkPath);
+
+		// the file is checked again and the count goes up under the monitor, so a release can't delete
+		// the chunk in between. one released since the first check is written here
+		synchronized(this) {
+			try {
+				if(!Files.exists(chunkPath)) {
+					if(tmpPath == null) {
+						tmpPath = seal(buffer, length, id, key, chunkPath);
+					}
+					Files.move(tmpPath, chunkPath, StandardCopyOption.ATOMIC_MOVE);
+					tmpPath = null;
+				}
+			} finally {
+				if(tmpPath != null) {
+					Files.delete(tmpPath);
+				}
+			}
+			counts.merge(HexFormat.of().formatHex(id), 1, Integer::sum);
+			addRecord(id, 1);
+		}
+		return new Ref(id, key, length);
+	}
+
+	// the sealed chunk in a temporary file next to chunkPath
+	private static Path seal(byte[] buffer, int length, byte[] id, byte[] key, Path chunkPath) throws Exception{
+		Cipher cipher = chunkCipher(Cipher.ENCRYPT_MODE, id, key);
+		byte[] sealed = new byte[StorageFormat.HEADER_LENGTH + cipher.getOutputSize(length)];
+		System.arraycopy(StorageFormat.header(StorageFormat.CHUNK), 0, sealed, 0, StorageFormat.HEADER_LENGTH);
+		cipher.doFinal(buffer, 0, length, sealed, StorageFormat.HEADER_LENGTH);
+
+		Files.createDirectories(chunkPath.getParent());
+		Path tmpPath = Files.createTempFile(chunkPath.getParent(), "chunk", ".tmp");
+		try {
+			Files.write(tmpPath, sealed);
+		} catch(IOException e) {
+			Files.deleteIfExists(tmpPath);
+			throw e;
+		}
+		return tmpPath;
+	}
+
+	private static byte[] packList(List<Ref> refs) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try(DataOutputStream out = new DataOutputStream(bytes)) {
+			out.writeInt(refs.size());
+			for(Ref ref : refs) {
+				out.write(ref.id());
+				out.write(ref.key());
+				out.writeInt(ref.length());
+			}
+		}
+		return bytes.toByteArray();
+	}
+
+	// -------------------------------------------------------------
+	// reading, needs only the file key
+
+	public static boolean isChunkList(Path encryptedFilePath, long offset) throws IOException {
+		return StorageFormat.version(encryptedFilePath, offset) == StorageFormat.CHUNK_LIST;
+	}
+
+	public static List<Ref> readList(Path encryptedFilePath, long offset, byte[] fileKey) throws Exception{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ChunkedContainer.decrypt(encryptedFilePath, offset + StorageFormat.HEADER_LENGTH, bytes, fileKey, null);
+		byte[] list = bytes.toByteArray();
+		try(DataInputStream in = new DataInputStream(new ByteArrayInputStream(list))) {
+			int count = in.readInt();
+			List<Ref> refs = new ArrayList<>(count);
+			for(int i = 0; i < count; i++) {
+				byte[] id = in.readNBytes(ID_LENGTH);
+				byte[] key = in.readNBytes(KEY_LENGTH);
+				int length = in.readInt();
+				if(key.length != KEY_LENGTH || length < 0 || length > MAX_CHUNK) {
+					throw new IOException("Chunk list is corrupted.");
+				}
+				refs.add(new Ref(id, key, length));
+			}
+			return refs;
+		} finally {
+			Arrays.fill(list, (byte) 0);
+		}
+	}
+
+	public static void decrypt(Path dir, Path encryptedFilePath, long offset, OutputStream out, byte[] fileKey, PlaintextObserver observer) throws Exception{
+		for(Ref ref : readList(encryptedFilePath, offset, fileKey)) {
+			byte[] plain = readChunk(dir, ref);
+			if(observer != null) {
+				observer.update(ByteBuffer.wrap(plain));
+			}
+			out.write(plain);
+			Arrays.fill(plain, (byte) 0);
+		}
+	}
+
+	private static byte[] readChunk(Path dir, Ref ref) throws IOException {
+		byte[] sealed;
+		try {
+			sealed = Files.readAllBytes(chunkPath(dir, ref.id()));
+		} catch(NoSuchFileException e) {
+			throw new IOException("Chunk " + HexFormat.of().formatHex(ref.id()) + " is missing from the chunk store.");
+		}
+		try {
+			if(StorageFormat.version(sealed) != StorageFormat.CHUNK) {
+				throw new GeneralSecurityException("not a chunk");
+			}
+			byte[] plain = chunkCipher(Cipher.DECRYPT_MODE, ref.id(), ref.key()).doFinal(sealed, StorageFormat.HEADER_LENGTH, sealed.length - StorageFormat.HEADER_LENGTH);
+			if(plain.length != ref.length()) {
+				throw new GeneralSecurityException("wrong length");
+			}
+			return plain;
+		} catch(GeneralSecurityException e) {
+			throw new IOException("Chunk " + HexFormat.of().formatHex(ref.id()) + " failed authentication - the file has been modified!", e);
+		}
+	}
+
+	private static Cipher chunkCipher(int mode, byte[] id, byte[] key) throws GeneralSecurityException {
+		Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+		cipher.init(mode, new SecretKeySpec(key, "AES"), new GCMParameterSpec(TAG_LENGTH * 8, new byte[12]));
+		cipher.updateAAD(id);
+		return cipher;
+	}
+
+	private static Path chunkPath(Path dir, byte[] id) {
+		String hex = HexFormat.of().formatHex(id);
+		return dir.resolve(hex.substring(0, 2)).resolve(hex);
+	}
+
+	// read-only plaintext view of a deduplicated file, only the chunks that are read get decrypted
+	public static class Reader implements SeekableByteChannel {
+		private final Path dir;
+		private final List<Ref> refs;
+		private final long[] starts;
+		private final long size;
+
+		private boolean open = true;
+		private long position = 0;
+		private int cachedIndex = -1;
+		private byte[] plain;
+
+		public Reader(Path dir, Path encryptedFilePath, long offset, byte[] fileKey) throws Exception {
+			this.dir = dir;
+			this.refs = readList(encryptedFilePath, offset, fileKey);
+			this.starts = new long[refs.size() + 1];
+			for(int i = 0; i < refs.size(); i++) {
+				starts[i + 1] = starts[i] + refs.get(i).length();
+			}
+			this.size = starts[refs.size()];
+		}
+
+		@Override
+		public int read(ByteBuffer dst) throws IOException {
+			if(!open) {
+				throw new ClosedChannelException();
+			}
+			if(position >= size) {
+				return -1;
+			}
+
+			int total = 0;
+			while(dst.hasRemaining() && position < size) {
+				int index = Arrays.binarySearch(starts, position);
+				index = index >= 0 ? index : -index - 2;
+				if(index != cachedIndex) {
+					if(plain != null) {
+						Arrays.fill(plain, (byte) 0);
+					}
+					plain = readChunk(dir, refs.get(index));
+					cachedIndex = index;
+				}
+
+				int offset = (int) (position - starts[index]);
+				int count = Math.min(dst.remaining(), plain.length - offset);
+				dst.put(plain, offset, count);
+				position += count;
+				total += count;
+			}
+			return total;
+		}
+
+		@Override
+		public int write(ByteBuffer src) {
+			throw new NonWritableChannelException();
+		}
+
+		@Override
+		public long position() {
+			return position;
+		}
+
+		@Override
+		public SeekableByteChannel position(long newPosition) {
+			if(newPosition < 0) {
+				throw new IllegalArgumentException("Negative position: " + newPosition);
+			}
+			this.position = newPosition;
+			return this;
+		}
+
+		@Override
+		public long size() {
+			return size;
+		}
+
+		@Override
+		public SeekableByteChannel truncate(long size) {
+			throw new NonWritableChannelException();
+		}
+
+		@Override
+		public boolean isOpen() {
+			return open;
+		}
+
+		@Override
+		public void close() {
+			if(plain != null) {
+				Arrays.fill(plain, (byte) 0);
+			}
+			open = false;
+		}
+	}
+
+	// -------------------------------------------------------------
+	// reference counts
+
+	private void load(EncryptionUtil eu, PrivateKey privateKey) throws Exception{
+		long size = Files.size(logPath);
+		long position;
+		try(DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(logPath)))) {
+			if(StorageFormat.version(in.readNBytes(StorageFormat.HEADER_LENGTH)) != StorageFormat.CHUNK_STORE) {
+				throw new IOException(logPath.getFileName() + " is not a chunk store log.");
+			}
+			wrappedSecret = new byte[in.readInt()];
+			in.readFully(wrappedSecret);
+			useSecret(eu.unwrapKeys(wrappedSecret, privateKey));
+			position = StorageFormat.HEADER_LENGTH + 4 + wrappedSecret.length;
+
+			byte[] record = new byte[REF_RECORD_LENGTH];
+			while(in.readNBytes(record, 0, record.length) == record.length) {
+				ByteBuffer fields = ByteBuffer.wrap(record);
+				CRC32 crc = new CRC32();
+				crc.update(record, 0, ID_LENGTH + 4);
+				if(fields.getInt(ID_LENGTH + 4) != (int) crc.getValue()) {
+					// only the last record can be a torn append, a bad one with records after it isn't
+					if(position + REF_RECORD_LENGTH != size) {
+						throw new IOException(logPath.getFileName() + " is damaged at byte " + position + ", it was left as it is.");
+					}
+					break;
+				}
+				String id = HexFormat.of().formatHex(record, 0, ID_LENGTH);
+				int count = counts.getOrDefault(id, 0) + fields.getInt(ID_LENGTH);
+				if(count <= 0) {
+					counts.remove(id);
+				} else {
+					counts.put(id, count);
+				}
+				records++;
+				position += REF_RECORD_LENGTH;
+			}
+		}
+
+		// cut short by a crash while appending
+		log = FileChannel.open(logPath, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		if(log.size() > position) {
+			log.truncate(position);
+			log.force(false);
+		}
+	}
+
+	private void useSecret(KeyEnvelope keys) {
+		byte[] raw = HexFormat.of().parseHex(keys.getKey());
+		secret = new SecretKeySpec(raw, "HmacSHA256");
+		Arrays.fill(raw, (byte) 0);
+	}
+
+	private void addRecord(byte[] id, int change) {
+		ByteBuffer record = ByteBuffer.allocate(REF_RECORD_LENGTH);
+		record.put(id).putInt(change);
+		CRC32 crc = new CRC32();
+		crc.update(record.array(), 0, ID_LENGTH + 4);
+		record.putInt((int) crc.getValue());
+		pending.writeBytes(record.array());
+	}
+
+	// durable when this returns
+	private synchronized void flushRefs() throws IOException {
+		if(pending.size() == 0) {
+			return;
+		}
+		ByteBuffer buffer = ByteBuffer.wrap(pending.toByteArray());
+		records += pending.size() / REF_RECORD_LENGTH;
+		pending.reset();
+		long position = log.size();
+		while(buffer.hasRemaining()) {
+			position += log.write(buffer, position);
+		}
+		log.force(false);
+
+		if(records >= COMPACT_MIN_RECORDS && records > counts.size() * 2) {
+			writeLog();
+		}
+	}
+
+	private void writeLog() throws IOException {
+		Path tmpPath = logPath.resolveSibling("refs.log.tmp");
+		try(FileChannel channel = FileChannel.open(tmpPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)))) {
+			out.write(StorageFormat.header(StorageFormat.CHUNK_STORE));
+			out.writeInt(wrappedSecret.length);
+			out.write(wrappedSecret);
+			for(Map.Entry<String, Integer> entry : counts.entrySet()) {
+				addRecord(HexFormat.of().parseHex(entry.getKey()), entry.getValue());
+			}
+			pending.writeTo(out);
+			pending.reset();
+			out.flush();
+			channel.force(true);
+		}
+
+		if(log != null) {
+			log.close();
+		}
+		Files.move(tmpPath, logPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		log = FileChannel.open(logPath, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		records = counts.size();
+	}
+
+	// the store stays open until its last user closes it
+	@Override
+	public void close() throws IOException {
+		// closed before the next open() of dir can run, it would find the file lock still held
+		synchronized(opened) {
+			if(--handles > 0) {
+				return;
+			}
+			opened.remove(dir);
+			synchronized(this) {
+				try {
+					flushRefs();
+				} finally {
+					if(log != null) {
+						log.close();
+						log = null;
+					}
+					lockChannel.close();
+					secret = null;
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,585 @@
+package utl;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.security.GeneralSecurityException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.crypto.*;
+import javax.crypto.spec.*;
+
+// seekable .enc container:
+// header = magic "EFS\0" | format version (1 byte) | chunk size (int) | nonce prefix (7 bytes)
+// body   = chunks of (chunk size + 16 byte GCM tag), only the last one can be shorter
+// every chunk is sealed with AES-GCM under nonce = prefix | chunk index | last chunk flag,
+// with the header as additional data, so chunks can't be swapped, dropped or cut off
+// a container can also start at an offset inside a bigger file (the "base"), see EFSObject
+public class ChunkedContainer {
+	public static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+	public static final int NONCE_PREFIX_LENGTH = 7;
+	public static final int HEADER_LENGTH = StorageFormat.HEADER_LENGTH + 4 + NONCE_PREFIX_LENGTH;
+	public static final int TAG_LENGTH = 16;
+
+	// checks whether the file starts with the container magic (old .enc files are base64 text)
+	public static boolean isContainer(Path encryptedFilePath) throws IOException {
+		return isContainer(encryptedFilePath, 0);
+	}
+
+	public static boolean isContainer(Path encryptedFilePath, long base) throws IOException {
+		return StorageFormat.version(encryptedFilePath, base) == StorageFormat.CHUNKED_GCM;
+	}
+
+	public static byte[] createHeader(int chunkSize, byte[] noncePrefix) {
+		ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+		header.put(StorageFormat.header(StorageFormat.CHUNKED_GCM)).putInt(chunkSize).put(noncePrefix, 0, NONCE_PREFIX_LENGTH);
+		return header.array();
+	}
+
+	public static void encrypt(InputStream in, OutputStream out, byte[] key, byte[] noncePrefix, PlaintextObserver observer) throws Exception{
+		encrypt(in, out, key, noncePrefix, DEFAULT_CHUNK_SIZE, observer);
+	}
+
+	public static void encrypt(InputStream in, OutputStream out, byte[] key, byte[] noncePrefix, int chunkSize, PlaintextObserver observer) throws Exception{
+		byte[] header = createHeader(chunkSize, noncePrefix);
+		SecretKeySpec keySpec = new SecretKeySpec(key, "AES");
+		Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+		out.write(header);
+
+		// one chunk of lookahead tells us which chunk is the last one
+		byte[] current = new byte[chunkSize];
+		byte[] next = new byte[chunkSize];
+		byte[] sealed = new byte[chunkSize + TAG_LENGTH];
+		int currentLength = in.readNBytes(current, 0, chunkSize);
+		long index = 0;
+		while(true) {
+			int nextLength = currentLength < chunkSize ? 0 : in.readNBytes(next, 0, chunkSize);
+			boolean last = nextLength == 0;
+			if(observer != null) {
+				observer.update(ByteBuffer.wrap(current, 0, currentLength));
+			}
+
+			cipher.init(Cipher.ENCRYPT_MODE, keySpec, chunkParameters(header, index, last));
+			cipher.updateAAD(header);
+			int written = cipher.doFinal(current, 0, currentLength, sealed, 0);
+			out.write(sealed, 0, written);
+
+			if(last) {
+				return;
+			}
+
+			byte[] tmp = current;
+			current = next;
+			next = tmp;
+			currentLength = nextLength;
+			index++;
+		}
+	}
+
+	public static void decrypt(Path encryptedFilePath, long base, OutputStream out, byte[] key, PlaintextObserver observer) throws Exception{
+		try(Reader reader = new Reader(FileChannel.open(encryptedFilePath, StandardOpenOption.READ), base, key)) {
+			ByteBuffer buffer = ByteBuffer.allocate(reader.chunkSize);
+			while(reader.read(buffer) != -1) {
+				buffer.flip();
+				if(observer != null) {
+					observer.update(buffer);
+				}
+				out.write(buffer.array(), 0, buffer.limit());
+				buffer.clear();
+			}
+		}
+	}
+
+	static GCMParameterSpec chunkParameters(byte[] header, long index, boolean last) {
+		if(index > 0xFFFFFFFFL) {
+			throw new IllegalArgumentException("Too many chunks in one container.");
+		}
+
+		ByteBuffer nonce = ByteBuffer.allocate(12);
+		nonce.put(header, HEADER_LENGTH - NONCE_PREFIX_LENGTH, NONCE_PREFIX_LENGTH).putInt((int) index).put((byte) (last ? 1 : 0));
+		return new GCMParameterSpec(TAG_LENGTH * 8, nonce.array());
+	}
+
+	static byte[] readHeader(FileChannel channel, long base) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+		readFully(channel, header, base);
+		if(StorageFormat.version(header.array()) != StorageFormat.CHUNKED_GCM) {
+			throw new IOException("Unsupported encrypted file format.");
+		}
+		if(chunkSize(header.array()) <= 0) {
+			throw new IOException("Encrypted file header is corrupted.");
+		}
+		return header.array();
+	}
+
+	static int chunkSize(byte[] header) {
+		return ByteBuffer.wrap(header, StorageFormat.HEADER_LENGTH, 4).getInt();
+	}
+
+	// number of chunks in a container of the given size
+	static long chunkCount(long containerSize, int chunkSize) throws IOException {
+		long segment = (long) chunkSize + TAG_LENGTH;
+		long body = containerSize - HEADER_LENGTH;
+		long remainder = body % segment;
+		if(body < TAG_LENGTH || (remainder != 0 && remainder < TAG_LENGTH)) {
+			throw new IOException("Encrypted file is truncated or corrupted.");
+		}
+		return body / segment + (remainder == 0 ? 0 : 1);
+	}
+
+	static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while(buffer.hasRemaining()) {
+			if(channel.read(buffer, position + buffer.position()) == -1) {
+				throw new IOException("Encrypted file is truncated.");
+			}
+		}
+	}
+
+	static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while(buffer.hasRemaining()) {
+			channel.write(buffer, position + buffer.position());
+		}
+	}
+
+	// -------------------------------------------------------------
+	// parallel path for large files: batches of chunks are sealed/opened on a ForkJoinPool
+	// and written straight to their final offsets with positional writes
+	// this thread reads (encryption) or collects (decryption) the batches in order,
+	// so the observer still sees the plaintext in order and the file is read only once
+
+	public static final int CHUNKS_PER_TASK = 16;
+
+	public static void encryptParallel(FileChannel in, FileChannel out, long base, byte[] key, byte[] noncePrefix, ForkJoinPool pool, PlaintextObserver observer) throws Exception{
+		byte[] header = createHeader(DEFAULT_CHUNK_SIZE, noncePrefix);
+		int chunkSize = DEFAULT_CHUNK_SIZE;
+		long size = in.size();
+		long chunkCount = Math.max(1, (size + chunkSize - 1) / chunkSize);
+		SecretKeySpec keySpec = new SecretKeySpec(key, "AES");
+
+		out.truncate(base);
+		writeFully(out, ByteBuffer.wrap(header), base);
+
+		runBatches(chunkCount, pool, first -> {
+			long last = Math.min(first + CHUNKS_PER_TASK, chunkCount);
+			ByteBuffer batch = ByteBuffer.allocate((int) (Math.min(last * chunkSize, size) - first * chunkSize));
+			readFully(in, batch, first * chunkSize);
+			batch.flip();
+			if(observer != null) {
+				observer.update(batch);
+			}
+
+			return () -> {
+				Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+				ByteBuffer sealed = ByteBuffer.allocate(chunkSize + TAG_LENGTH);
+				for(long index = first; index < last; index++) {
+					int offset = (int) ((index - first) * chunkSize);
+					ByteBuffer plain = batch.duplicate().position(offset).limit(Math.min(offset + chunkSize, batch.limit()));
+
+					sealed.clear();
+					cipher.init(Cipher.ENCRYPT_MODE, keySpec, chunkParameters(header, index, index == chunkCount - 1));
+					cipher.updateAAD(header);
+					cipher.doFinal(plain, sealed);
+					sealed.flip();
+					writeFully(out, sealed, base + HEADER_LENGTH + index * ((long) chunkSize + TAG_LENGTH));
+				}
+				return null;
+			};
+		}, null);
+	}
+
+	public static void decryptParallel(FileChannel in, long base, FileChannel out, byte[] key, ForkJoinPool pool, PlaintextObserver observer) throws Exception{
+		byte[] header = readHeader(in, base);
+		int chunkSize = chunkSize(header);
+		long chunkCount = chunkCount(in.size() - base, chunkSize);
+		long size = in.size() - base - HEADER_LENGTH - chunkCount * TAG_LENGTH;
+		SecretKeySpec keySpec = new SecretKeySpec(key, "AES");
+
+		out.truncate(0);
+		runBatches(chunkCount, pool, first -> () -> {
+			long last = Math.min(first + CHUNKS_PER_TASK, chunkCount);
+			Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+			ByteBuffer sealed = ByteBuffer.allocate(chunkSize + TAG_LENGTH);
+			ByteBuffer batch = ByteBuffer.allocate((int) (Math.min(last * chunkSize, size) - first * chunkSize));
+			for(long index = first; index < last; index++) {
+				long offset = base + HEADER_LENGTH + index * ((long) chunkSize + TAG_LENGTH);
+				sealed.clear();
+				sealed.limit((int) Math.min(sealed.capacity(), in.size() - offset));
+				readFully(in, sealed, offset);
+				sealed.flip();
+
+				try {
+					cipher.init(Cipher.DECRYPT_MODE, keySpec, chunkParameters(header, index, index == chunkCount - 1));
+					cipher.updateAAD(header);
+					cipher.doFinal(sealed, batch);
+				} catch(GeneralSecurityException e) {
+					throw new IOException("Chunk " + index + " failed authentication - the file has been modified!", e);
+				}
+			}
+			batch.flip();
+			writeFully(out, batch.duplicate(), first * chunkSize);
+			return batch;
+		}, batch -> {
+			if(observer != null) {
+				observer.update(batch);
+			}
+			Arrays.fill(batch.array(), (byte) 0);
+		});
+	}
+
+	// -------------------------------------------------------------
+	// mapped path for very large files (MAPPED_THRESHOLD): the same batches as the parallel path, but the
+	// input is read through memory-mapped windows and sealed/opened straight into reused direct buffers,
+	// so no plain text or ciphertext is copied into the java heap. the output isn't mapped, a mapping keeps
+	// its file open (and on Windows impossible to move or delete) until it is garbage collected
+
+	private static final int WINDOW_CHUNKS = 64 * CHUNKS_PER_TASK;
+
+	public static void encryptMapped(FileChannel in, FileChannel out, long base, byte[] key, byte[] noncePrefix, ForkJoinPool pool, PlaintextObserver observer) throws Exception{
+		byte[] header = createHeader(DEFAULT_CHUNK_SIZE, noncePrefix);
+		int chunkSize = DEFAULT_CHUNK_SIZE;
+		long size = in.size();
+		long chunkCount = Math.max(1, (size + chunkSize - 1) / chunkSize);
+		SecretKeySpec keySpec = new SecretKeySpec(key, "AES");
+		MappedWindows plainWindows = new MappedWindows(in, 0, chunkSize, size);
+
+		out.truncate(base);
+		writeFully(out, ByteBuffer.wrap(header), base);
+
+		try(DirectBuffers buffers = new DirectBuffers(CHUNKS_PER_TASK * (chunkSize + TAG_LENGTH))) {
+			runBatches(chunkCount, pool, first -> {
+				long last = Math.min(first + CHUNKS_PER_TASK, chunkCount);
+				ByteBuffer batch = plainWindows.slice(first, last);
+				if(observer != null) {
+					observer.update(batch);
+				}
+
+				return () -> {
+					Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+					ByteBuffer sealed = buffers.take();
+					try {
+						for(long index = first; index < last; index++) {
+							int offset = (int) ((index - first) * chunkSize);
+							ByteBuffer plain = batch.duplicate().position(offset).limit(Math.min(offset + chunkSize, batch.limit()));
+
+							cipher.init(Cipher.ENCRYPT_MODE, keySpec, chunkParameters(header, index, index == chunkCount - 1));
+							cipher.updateAAD(header);
+							cipher.doFinal(plain, sealed);
+						}
+						sealed.flip();
+						writeFully(out, sealed, base + HEADER_LENGTH + first * ((long) chunkSize + TAG_LENGTH));
+					} finally {
+						buffers.release(sealed);
+					}
+					return null;
+				};
+			}, null);
+		}
+	}
+
+	public static void decryptMapped(FileChannel in, long base, FileChannel out, byte[] key, ForkJoinPool pool, PlaintextObserver observer) throws Exception{
+		byte[] header = readHeader(in, base);
+		int chunkSize = chunkSize(header);
+		long chunkCount = chunkCount(in.size() - base, chunkSize);
+		SecretKeySpec keySpec = new SecretKeySpec(key, "AES");
+		MappedWindows sealedWindows = new MappedWindows(in, base + HEADER_LENGTH, chunkSize + TAG_LENGTH, in.size());
+
+		out.truncate(0);
+		try(DirectBuffers buffers = new DirectBuffers(CHUNKS_PER_TASK * chunkSize)) {
+			runBatches(chunkCount, pool, first -> {
+				long last = Math.min(first + CHUNKS_PER_TASK, chunkCount);
+				ByteBuffer sealedBatch = sealedWindows.slice(first, last);
+
+				return () -> {
+					Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+					// handed back by the collector once the observer has seen it
+					ByteBuffer batch = buffers.take();
+					for(long index = first; index < last; index++) {
+						int offset = (int) ((index - first) * ((long) chunkSize + TAG_LENGTH));
+						ByteBuffer sealed = sealedBatch.duplicate().position(offset).limit(Math.min(offset + chunkSize + TAG_LENGTH, sealedBatch.limit()));
+
+						try {
+							cipher.init(Cipher.DECRYPT_MODE, keySpec, chunkParameters(header, index, index == chunkCount - 1));
+							cipher.updateAAD(header);
+							cipher.doFinal(sealed, batch);
+						} catch(GeneralSecurityException e) {
+							buffers.release(batch);
+							throw new IOException("Chunk " + index + " failed authentication - the file has been modified!", e);
+						}
+					}
+					batch.flip();
+					writeFully(out, batch.duplicate(), first * chunkSize);
+					return batch;
+				};
+			}, batch -> {
+				if(observer != null) {
+					observer.update(batch);
+				}
+				buffers.release(batch);
+			});
+		}
+	}
+
+	// consecutive segments (chunks or sealed chunks) of a file, mapped WINDOW_CHUNKS at a time
+	// slices are taken in order by one thread, a batch never crosses a window
+	private static class MappedWindows {
+		private final FileChannel channel;
+		private final long start;
+		private final long segment;
+		private final long end;
+		private MappedByteBuffer window;
+		private long windowFirst;
+
+		MappedWindows(FileChannel channel, long start, long segment, long end) {
+			this.channel = channel;
+			this.start = start;
+			this.segment = segment;
+			this.end = end;
+		}
+
+		ByteBuffer slice(long first, long last) throws IOException {
+			if(window == null || first < windowFirst || last > windowFirst + WINDOW_CHUNKS) {
+				windowFirst = first - first % WINDOW_CHUNKS;
+				long from = start + windowFirst * segment;
+				window = channel.map(FileChannel.MapMode.READ_ONLY, from, Math.min(WINDOW_CHUNKS * segment, end - from));
+			}
+			int from = (int) ((first - windowFirst) * segment);
+			int to = (int) Math.min((last - windowFirst) * segment, window.capacity());
+			return window.slice(from, to - from);
+		}
+	}
+
+	// direct buffers of one call, reused by its tasks and wiped when it ends
+	private static class DirectBuffers implements AutoCloseable {
+		private final int capacity;
+		private final Queue<ByteBuffer> free = new ConcurrentLinkedQueue<>();
+		private final Queue<ByteBuffer> all = new ConcurrentLinkedQueue<>();
+
+		DirectBuffers(int capacity) {
+			this.capacity = capacity;
+		}
+
+		ByteBuffer take() {
+			ByteBuffer buffer = free.poll();
+			if(buffer == null) {
+				buffer = ByteBuffer.allocateDirect(capacity);
+				all.add(buffer);
+			}
+			return buffer.clear();
+		}
+
+		void release(ByteBuffer buffer) {
+			free.add(buffer);
+		}
+
+		@Override
+		public void close() {
+			byte[] zeros = new byte[DEFAULT_CHUNK_SIZE];
+			for(ByteBuffer buffer : all) {
+				buffer.clear();
+				while(buffer.hasRemaining()) {
+					buffer.put(zeros, 0, Math.min(zeros.length, buffer.remaining()));
+				}
+			}
+		}
+	}
+
+	private interface BatchSubmitter {
+		// does the calling thread's part of a batch (reading, the observer) and returns the part for the pool
+		Callable<ByteBuffer> prepare(long firstChunk) throws Exception;
+	}
+
+	private interface BatchCollector {
+		void collect(ByteBuffer batch) throws Exception;
+	}
+
+	// keeps at most two batches per worker in flight and collects finished batches in order
+	// returns only when no batch is running any more, also after a failure: batches write to the caller's
+	// channel and into buffers that are reused or wiped once this returns. a cancelled ForkJoinTask can't
+	// be waited for, so batches that haven't started yet are skipped instead and the rest counted out
+	private static void runBatches(long chunkCount, ForkJoinPool pool, BatchSubmitter submitter, BatchCollector collector) throws Exception{
+		int window = pool.getParallelism() * 2;
+		Deque<ForkJoinTask<ByteBuffer>> inFlight = new ArrayDeque<>();
+		Phaser running = new Phaser(1);
+		AtomicBoolean abandoned = new AtomicBoolean();
+		try {
+			for(long first = 0; first < chunkCount; first += CHUNKS_PER_TASK) {
+				if(inFlight.size() >= window) {
+					collect(inFlight.poll(), collector);
+				}
+				Callable<ByteBuffer> batch = submitter.prepare(first);
+				running.register();
+				try {
+					inFlight.add(pool.submit(() -> {
+						try {
+							return abandoned.get() ? null : batch.call();
+						} finally {
+							running.arriveAndDeregister();
+						}
+					}));
+				} catch(RuntimeException e) {
+					running.arriveAndDeregister();
+					throw e;
+				}
+			}
+			while(!inFlight.isEmpty()) {
+				collect(inFlight.poll(), collector);
+			}
+		} finally {
+			abandoned.set(true);
+			running.arriveAndAwaitAdvance();
+		}
+	}
+
+	private static void collect(ForkJoinTask<ByteBuffer> task, BatchCollector collector) throws Exception{
+		ByteBuffer batch;
+		try {
+			batch = task.get();
+		} catch(ExecutionException e) {
+			throw failure(e);
+		}
+		if(collector != null) {
+			collector.collect(batch);
+		}
+	}
+
+	// the IOException or GeneralSecurityException under the layers the pool wraps around it
+	private static Exception failure(ExecutionException e) {
+		for(Throwable cause = e.getCause(); cause != null; cause = cause.getCause()) {
+			if(cause instanceof IOException || cause instanceof GeneralSecurityException) {
+				return (Exception) cause;
+			}
+		}
+		return e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+	}
+
+	// -------------------------------------------------------------
+
+	// read-only plaintext view of a container, decrypting only the chunks that are read
+	public static class Reader implements SeekableByteChannel {
+		private final FileChannel channel;
+		private final long base;
+		private final SecretKeySpec keySpec;
+		private final Cipher cipher;
+		private final byte[] header;
+		private final int chunkSize;
+		private final long chunkCount;
+		private final long size;
+
+		private long position = 0;
+		private long cachedIndex = -1;
+		private final ByteBuffer sealed;
+		private final ByteBuffer plain;
+
+		public Reader(FileChannel channel, long base, byte[] key) throws Exception {
+			this.channel = channel;
+			this.base = base;
+			this.keySpec = new SecretKeySpec(key, "AES");
+			this.cipher = Cipher.getInstance("AES/GCM/NoPadding");
+
+			try {
+				this.header = readHeader(channel, base);
+				this.chunkSize = chunkSize(header);
+				this.chunkCount = chunkCount(channel.size() - base, chunkSize);
+				this.size = channel.size() - base - HEADER_LENGTH - chunkCount * TAG_LENGTH;
+				this.sealed = ByteBuffer.allocate(chunkSize + TAG_LENGTH);
+				this.plain = ByteBuffer.allocate(chunkSize);
+
+				// only the real last chunk opens with the last chunk flag: a container cut at a chunk
+				// boundary fails here, before anything is read, not just when a full download is hashed
+				loadChunk(chunkCount - 1);
+			} catch(Exception e) {
+				channel.close();
+				throw e;
+			}
+		}
+
+		private void loadChunk(long index) throws IOException {
+			if(index == cachedIndex) {
+				return;
+			}
+
+			sealed.clear();
+			long offset = base + HEADER_LENGTH + index * ((long) chunkSize + TAG_LENGTH);
+			sealed.limit((int) Math.min(sealed.capacity(), channel.size() - offset));
+			readFully(channel, sealed, offset);
+			sealed.flip();
+
+			plain.clear();
+			cachedIndex = -1;
+			try {
+				cipher.init(Cipher.DECRYPT_MODE, keySpec, chunkParameters(header, index, index == chunkCount - 1));
+				cipher.updateAAD(header);
+				cipher.doFinal(sealed, plain);
+			} catch(GeneralSecurityException e) {
+				throw new IOException("Chunk " + index + " failed authentication - the file has been modified!", e);
+			}
+			plain.flip();
+			cachedIndex = index;
+		}
+
+		@Override
+		public int read(ByteBuffer dst) throws IOException {
+			if(!isOpen()) {
+				throw new ClosedChannelException();
+			}
+			if(position >= size) {
+				return -1;
+			}
+
+			int total = 0;
+			while(dst.hasRemaining() && position < size) {
+				long index = position / chunkSize;
+				loadChunk(index);
+
+				int offset = (int) (position - index * chunkSize);
+				int count = Math.min(dst.remaining(), plain.limit() - offset);
+				dst.put(plain.array(), offset, count);
+				position += count;
+				total += count;
+			}
+			return total;
+		}
+
+		@Override
+		public int write(ByteBuffer src) {
+			throw new NonWritableChannelException();
+		}
+
+		@Override
+		public long position() {
+			return position;
+		}
+
+		@Override
+		public SeekableByteChannel position(long newPosition) {
+			if(newPosition < 0) {
+				throw new IllegalArgumentException("Negative position: " + newPosition);
+			}
+			this.position = newPosition;
+			return this;
+		}
+
+		@Override
+		public long size() {
+			return size;
+		}
+
+		@Override
+		public SeekableByteChannel truncate(long size) {
+			throw new NonWritableChannelException();
+		}
+
+		@Override
+		public boolean isOpen() {
+			return channel.isOpen();
+		}
+
+		@Override
+		public void close() throws IOException {
+			Arrays.fill(plain.array(), (byte) 0);
+			channel.close();
+		}
+	}
+}
@@ -0,0 +1,44 @@
+package utl;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+import javax.crypto.*;
+import javax.crypto.spec.*;
+
+public class CipherEngine {
+	public static final int BUFFER_SIZE = 64 * 1024;
+
+	// AES-128, AES-192, AES-256 in CBC mode (same as openssl enc -aes-*-cbc)
+	public static Cipher newCBCCipher(int mode, String keyHex, String ivHex) throws Exception{
+		Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+		cipher.init(mode, new SecretKeySpec(HexFormat.of().parseHex(keyHex), "AES"), new IvParameterSpec(HexFormat.of().parseHex(ivHex)));
+		return cipher;
+	}
+
+	// streams the whole input through the cipher using one fixed-size buffer,
+	// outputObserver (if any) sees everything the cipher produces
+	public static void transform(Cipher cipher, InputStream in, OutputStream out, PlaintextObserver outputObserver) throws Exception{
+		byte[] buffer = new byte[BUFFER_SIZE];
+		byte[] output = new byte[cipher.getOutputSize(BUFFER_SIZE)];
+		int read;
+		while((read = in.read(buffer)) != -1) {
+			int written = cipher.update(buffer, 0, read, output);
+			emit(output, written, out, outputObserver);
+		}
+		byte[] last = cipher.doFinal();
+		emit(last, last.length, out, outputObserver);
+	}
+
+	private static void emit(byte[] data, int length, OutputStream out, PlaintextObserver observer) throws Exception{
+		if(observer != null) {
+			observer.update(ByteBuffer.wrap(data, 0, length));
+		}
+		out.write(data, 0, length);
+	}
+
+	// decrypts files written by openssl enc -base64 (line breaks are skipped)
+	public static void decryptBase64(Cipher cipher, InputStream in, OutputStream out, PlaintextObserver observer) throws Exception{
+		transform(cipher, Base64.getMimeDecoder().wrap(in), out, observer);
+	}
+}
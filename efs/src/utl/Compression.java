@@ -0,0 +1,163 @@
+package utl;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.*;
+
+import system.EFSystem;
+
+// optional compression of plain text before it is encrypted (COMPRESSION=deflate, none by default)
+// the codec's name goes into the file's metadata, downloads undo it by name. codecs other than the
+// built-in deflate can be added with register()
+// only the first SAMPLE_LENGTH bytes are compressed to decide: content that doesn't get at least
+// 10% smaller (PDFs, images, archives) is stored as it is
+public class Compression {
+	public static final int SAMPLE_LENGTH = 64 * 1024;
+	private static final double MAX_RATIO = 0.9;
+
+	public interface Codec {
+		String name();
+		InputStream compress(InputStream plain) throws IOException;
+		// plain text written to the returned stream comes out of out decompressed, closing it finishes
+		// the stream but leaves out open
+		OutputStream decompress(OutputStream out) throws IOException;
+	}
+
+	private static final Map<String, Codec> codecs = new ConcurrentHashMap<>();
+	static {
+		int level = (int) EFSystem.pr.getLongProperty("COMPRESSION_LEVEL", Deflater.DEFAULT_COMPRESSION);
+		register(new Codec() {
+			@Override
+			public String name() {
+				return "deflate";
+			}
+
+			@Override
+			public InputStream compress(InputStream plain) {
+				// a deflater passed in isn't ended by the stream, its native memory would wait for the gc
+				Deflater deflater = new Deflater(level);
+				return new DeflaterInputStream(plain, deflater, CipherEngine.BUFFER_SIZE) {
+					@Override
+					public void close() throws IOException {
+						try {
+							super.close();
+						} finally {
+							deflater.end();
+						}
+					}
+				};
+			}
+
+			@Override
+			public OutputStream decompress(OutputStream out) {
+				Inflater inflater = new Inflater();
+				return new InflaterOutputStream(observing(out, null), inflater, CipherEngine.BUFFER_SIZE) {
+					@Override
+					public void close() throws IOException {
+						try {
+							super.close();
+						} finally {
+							inflater.end();
+						}
+					}
+				};
+			}
+		});
+	}
+
+	public static void register(Codec codec) {
+		codecs.put(codec.name(), codec);
+	}
+
+	public static Codec codec(String name) {
+		Codec codec = codecs.get(name);
+		if(codec == null) {
+			throw new IllegalArgumentException("File was stored with unknown compression '" + name + "'.");
+		}
+		return codec;
+	}
+
+	// codec set by COMPRESSION if it pays off for the sample, null to store the plain text as it is
+	public static Codec choose(byte[] sample, int length) throws IOException {
+		String name = EFSystem.pr.getProperty("COMPRESSION", "none").trim();
+		if(name.isEmpty() || name.equalsIgnoreCase("none") || length == 0) {
+			return null;
+		}
+		Codec codec = codec(name);
+
+		long compressed = 0;
+		try(InputStream in = codec.compress(new ByteArrayInputStream(sample, 0, length))) {
+			byte[] buffer = new byte[CipherEngine.BUFFER_SIZE];
+			int read;
+			while((read = in.read(buffer)) != -1) {
+				compressed += read;
+			}
+		}
+		return compressed <= length * MAX_RATIO ? codec : null;
+	}
+
+	// -------------------------------------------------------------
+
+	// passes everything read to the observer first
+	public static InputStream observing(InputStream in, PlaintextObserver observer) {
+		if(observer == null) {
+			return in;
+		}
+		return new FilterInputStream(in) {
+			@Override
+			public int read() throws IOException {
+				byte[] one = new byte[1];
+				return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				int read = in.read(b, off, len);
+				if(read > 0) {
+					update(observer, ByteBuffer.wrap(b, off, read));
+				}
+				return read;
+			}
+
+			@Override
+			public long skip(long n) throws IOException {
+				throw new IOException("Skipping would hide bytes from the observer.");
+			}
+		};
+	}
+
+	// passes everything written to the observer (if any) first, the stream below is left open on close
+	public static OutputStream observing(OutputStream out, PlaintextObserver observer) {
+		return new FilterOutputStream(out) {
+			@Override
+			public void write(int b) throws IOException {
+				write(new byte[] {(byte) b}, 0, 1);
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				if(observer != null) {
+					update(observer, ByteBuffer.wrap(b, off, len));
+				}
+				out.write(b, off, len);
+			}
+
+			@Override
+			public void close() throws IOException {
+				flush();
+			}
+		};
+	}
+
+	private static void update(PlaintextObserver observer, ByteBuffer plaintext) throws IOException {
+		try {
+			observer.update(plaintext);
+		} catch(IOException e) {
+			throw e;
+		} catch(Exception e) {
+			throw new IOException(e.getMessage(), e);
+		}
+	}
+}
@@ -0,0 +1,559 @@
+package utl;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.security.*;
+import java.util.*;
+import java.util.stream.*;
+import javax.crypto.*;
+import javax.crypto.spec.*;
+
+// directories and stored files (.enc) of one EFS home with their sizes, kept in memory so listings don't
+// walk the file system. on disk it's an append-only log inside the home (.manifest):
+// magic | format version | wrapped key length (int) | wrapped key | records
+// record: length (int) | nonce (12 bytes) | AES-GCM of (operation | path | size), record number as additional data
+// the key is random per manifest and wrapped with the owner's public key like file keys are. a record cut
+// short by a crash is dropped on the next open, other damage has it rebuilt. the log is rewritten once
+// replaced records outnumber live entries. changes made next to EFS are picked up by a WatchService while
+// the manifest is open; a missing or unreadable manifest is rebuilt from the directory tree (delete it to
+// force that). sessions of one user share the open manifest, a lock on .manifest.lock keeps the log to
+// one process, a manifest opened while another process holds it is built from the tree and kept in memory
+public class DirectoryManifest implements Closeable {
+	public static final String FILE_NAME = ".manifest";
+	public static final long DIRECTORY = -1;
+
+	// told about every entry that appears or goes away, paths relative to the home, directories end with /
+	public interface Listener {
+		void added(String path);
+		void removed(String path);
+	}
+
+	private static final byte PUT = 1;
+	private static final byte REMOVE = 2;
+	private static final int NONCE_LENGTH = 12;
+	private static final int TAG_LENGTH = 16;
+	private static final int MAX_RECORD_LENGTH = NONCE_LENGTH + 3 * 65535 + TAG_LENGTH;
+	private static final int COMPACT_MIN_RECORDS = 64;
+	private static final SecureRandom random = new SecureRandom();
+	// one instance per home in the process, shared by every session of the owner
+	private static final Map<Path, DirectoryManifest> opened = new HashMap<>();
+
+	private Path root;
+	private Path logPath;
+	private FileChannel log;
+	private SecretKeySpec key;
+	private byte[] wrappedKey;
+	private int records;
+	private int handles;
+	// held while the manifest is open, null if another process keeps the log (this one then only
+	// keeps the entries in memory)
+	private FileChannel lockChannel;
+
+	// directory ("" is the home itself) -> name -> size, DIRECTORY for subdirectories
+	private Map<String, TreeMap<String, Long>> children = new HashMap<>();
+	private int entries;
+
+	private WatchService watcher;
+	private Map<WatchKey, Path> watched = new HashMap<>();
+	private Thread watcherThread;
+	private List<Listener> listeners = new ArrayList<>();
+
+	private DirectoryManifest(Path root) {
+		this.root = root;
+		this.logPath = root.resolve(FILE_NAME);
+		children.put("", new TreeMap<>());
+	}
+
+	// the manifest of root that's open already, or a new one. every open needs its own close()
+	public static DirectoryManifest open(Path root, EncryptionUtil eu, PublicKey publicKey, PrivateKey privateKey) throws Exception{
+		root = root.toAbsolutePath().normalize();
+		synchronized(opened) {
+			DirectoryManifest manifest = opened.get(root);
+			if(manifest != null) {
+				manifest.handles++;
+				return manifest;
+			}
+
+			// the lock file stays put, the log itself is replaced by every compaction
+			FileChannel lockChannel = FileChannel.open(root.resolve(FILE_NAME + ".lock"), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+			try {
+				if(lockChannel.tryLock() == null) {
+					lockChannel.close();
+					lockChannel = null;
+				}
+				manifest = load(root, lockChannel, eu, publicKey, privateKey);
+			} catch(Exception e) {
+				if(lockChannel != null) {
+					lockChannel.close();
+				}
+				throw e;
+			}
+			manifest.handles = 1;
+			opened.put(root, manifest);
+			return manifest;
+		}
+	}
+
+	private static DirectoryManifest load(Path root, FileChannel lockChannel, EncryptionUtil eu, PublicKey publicKey, PrivateKey privateKey) throws Exception{
+		DirectoryManifest manifest = new DirectoryManifest(root);
+		manifest.lockChannel = lockChannel;
+		if(lockChannel != null && Files.exists(manifest.logPath)) {
+			try {
+				manifest.load(eu, privateKey);
+				return manifest;
+			} catch(Exception e) {
+				// other owner's key or damaged beyond the last record, the tree is the truth
+				System.out.println("Rebuilding directory manifest: " + e.getMessage());
+				manifest = new DirectoryManifest(root);
+				manifest.lockChannel = lockChannel;
+			}
+		}
+		manifest.rebuild(eu, publicKey);
+		return manifest;
+	}
+
+	// entries of a directory (relative to the home), name -> size or DIRECTORY
+	public synchronized SortedMap<String, Long> list(Path dir) {
+		TreeMap<String, Long> entries = children.get(key(dir));
+		return entries != null ? new TreeMap<>(entries) : Collections.emptySortedMap();
+	}
+
+	// every directory (ending with /) and file relative to the home, sorted
+	public synchronized List<String> paths() {
+		List<String> paths = new ArrayList<>();
+		for(Map.Entry<String, TreeMap<String, Long>> dir : children.entrySet()) {
+			String prefix = dir.getKey().isEmpty() ? "" : dir.getKey() + "/";
+			for(Map.Entry<String, Long> entry : dir.getValue().entrySet()) {
+				paths.add(prefix + entry.getKey() + (entry.getValue() == DIRECTORY ? "/" : ""));
+			}
+		}
+		Collections.sort(paths);
+		return paths;
+	}
+
+	public synchronized void putFile(Path relative, long size) throws IOException {
+		put(key(relative), size);
+	}
+
+	public synchronized void putDirectory(Path relative) throws IOException {
+		put(key(relative), DIRECTORY);
+	}
+
+	// a directory goes with everything under it
+	public synchronized void remove(Path relative) throws IOException {
+		String path = key(relative);
+		if(apply(REMOVE, path, 0)) {
+			append(REMOVE, path, 0);
+		}
+	}
+
+	// the listener first hears about everything already in the manifest
+	public synchronized void addListener(Listener listener) {
+		for(String path : paths()) {
+			listener.added(path);
+		}
+		listeners.add(listener);
+	}
+
+	public synchronized void removeListener(Listener listener) {
+		listeners.remove(listener);
+	}
+
+	// -------------------------------------------------------------
+
+	private void put(String path, long size) throws IOException {
+		if(path.isEmpty()) {
+			return;
+		}
+		// parents first, each one is a record of its own
+		int separator = path.lastIndexOf('/');
+		if(separator != -1 && !children.containsKey(path.substring(0, separator))) {
+			put(path.substring(0, separator), DIRECTORY);
+		}
+		if(apply(PUT, path, size)) {
+			append(PUT, path, size);
+		}
+	}
+
+	// changes the in-memory state, false if it was already like that
+	private boolean apply(byte operation, String path, long size) {
+		int separator = path.lastIndexOf('/');
+		String parent = separator == -1 ? "" : path.substring(0, separator);
+		String name = path.substring(separator + 1);
+
+		if(operation == PUT) {
+			TreeMap<String, Long> siblings = children.get(parent);
+			if(siblings == null) {
+				apply(PUT, parent, DIRECTORY);
+				siblings = children.get(parent);
+			}
+			Long previous = siblings.put(name, size);
+			if(previous == null) {
+				entries++;
+				notifyAdded(path, size == DIRECTORY);
+			} else if((previous == DIRECTORY) != (size == DIRECTORY)) {
+				removeSubtree(path);
+				notifyRemoved(path, previous == DIRECTORY);
+				notifyAdded(path, size == DIRECTORY);
+			}
+			if(size == DIRECTORY && !children.containsKey(path)) {
+				children.put(path, new TreeMap<>());
+				watch(path);
+			}
+			return previous == null || previous != size;
+		}
+
+		TreeMap<String, Long> siblings = children.get(parent);
+		Long previous = siblings != null ? siblings.remove(name) : null;
+		if(previous == null) {
+			return false;
+		}
+		entries--;
+		removeSubtree(path);
+		notifyRemoved(path, previous == DIRECTORY);
+		return true;
+	}
+
+	private void removeSubtree(String path) {
+		Iterator<Map.Entry<String, TreeMap<String, Long>>> it = children.entrySet().iterator();
+		while(it.hasNext()) {
+			Map.Entry<String, TreeMap<String, Long>> dir = it.next();
+			if(dir.getKey().equals(path) || dir.getKey().startsWith(path + "/")) {
+				entries -= dir.getValue().size();
+				for(Map.Entry<String, Long> entry : dir.getValue().entrySet()) {
+					notifyRemoved(dir.getKey() + "/" + entry.getKey(), entry.getValue() == DIRECTORY);
+				}
+				it.remove();
+			}
+		}
+	}
+
+	private void notifyAdded(String path, boolean directory) {
+		for(Listener listener : listeners) {
+			listener.added(directory ? path + "/" : path);
+		}
+	}
+
+	private void notifyRemoved(String path, boolean directory) {
+		for(Listener listener : listeners) {
+			listener.removed(directory ? path + "/" : path);
+		}
+	}
+
+	private static String key(Path relative) {
+		return relative.normalize().toString().replace(File.separatorChar, '/');
+	}
+
+	// -------------------------------------------------------------
+
+	private void load(EncryptionUtil eu, PrivateKey privateKey) throws Exception{
+		long size = Files.size(logPath);
+		long position;
+		try(DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(logPath)))) {
+			if(StorageFormat.version(in.readNBytes(StorageFormat.HEADER_LENGTH)) != StorageFormat.MANIFEST) {
+				throw new IOException(FILE_NAME + " is not a directory manifest.");
+			}
+			wrappedKey = new byte[in.readInt()];
+			in.readFully(wrappedKey);
+			useKey(eu.unwrapKeys(wrappedKey, privateKey));
+			position = StorageFormat.HEADER_LENGTH + 4 + wrappedKey.length;
+
+			while(true) {
+				byte[] record;
+				try {
+					int length = in.readInt();
+					if(length < NONCE_LENGTH + TAG_LENGTH || length > MAX_RECORD_LENGTH) {
+						throw new IOException(FILE_NAME + " is damaged at byte " + position + ".");
+					}
+					record = new byte[length];
+					in.readFully(record);
+				} catch(EOFException e) {
+					break;
+				}
+				try(DataInputStream fields = new DataInputStream(new ByteArrayInputStream(seal(Cipher.DECRYPT_MODE, record, records)))) {
+					apply(fields.readByte(), fields.readUTF(), fields.readLong());
+				} catch(GeneralSecurityException e) {
+					// only the last record can be a torn append, anything else means the log can't be trusted
+					// and open() rebuilds it from the tree
+					if(position + 4 + record.length != size) {
+						throw new IOException(FILE_NAME + " is damaged at byte " + position + ".");
+					}
+					break;
+				}
+				records++;
+				position += 4 + record.length;
+			}
+		}
+
+		// cut short by a crash while appending
+		log = FileChannel.open(logPath, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		if(log.size() > position) {
+			log.truncate(position);
+			log.force(false);
+		}
+	}
+
+	private void rebuild(EncryptionUtil eu, PublicKey publicKey) throws Exception{
+		KeyEnvelope keys = new KeyEnvelope("AES-256", eu.generateKey("AES", 256), "", null);
+		wrappedKey = eu.wrapKeys(keys, publicKey);
+		useKey(keys);
+
+		try(Stream<Path> paths = Files.walk(root)) {
+			for(Path path : (Iterable<Path>) paths::iterator) {
+				if(path.equals(root)) {
+					continue;
+				}
+				if(Files.isDirectory(path)) {
+					apply(PUT, key(root.relativize(path)), DIRECTORY);
+				} else if(path.getFileName().toString().endsWith(".enc")) {
+					apply(PUT, key(root.relativize(path)), Files.size(path));
+				}
+			}
+		}
+		writeLog();
+	}
+
+	private void useKey(KeyEnvelope keys) {
+		byte[] raw = HexFormat.of().parseHex(keys.getKey());
+		key = new SecretKeySpec(raw, "AES");
+		Arrays.fill(raw, (byte) 0);
+	}
+
+	// nonce | ciphertext and the other way round
+	private byte[] seal(int mode, byte[] data, int recordNumber) throws GeneralSecurityException {
+		Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+		byte[] aad = ByteBuffer.allocate(4).putInt(recordNumber).array();
+		if(mode == Cipher.ENCRYPT_MODE) {
+			byte[] nonce = new byte[NONCE_LENGTH];
+			random.nextBytes(nonce);
+			cipher.init(mode, key, new GCMParameterSpec(TAG_LENGTH * 8, nonce));
+			cipher.updateAAD(aad);
+			byte[] sealed = Arrays.copyOf(nonce, NONCE_LENGTH + cipher.getOutputSize(data.length));
+			cipher.doFinal(data, 0, data.length, sealed, NONCE_LENGTH);
+			return sealed;
+		}
+		cipher.init(mode, key, new GCMParameterSpec(TAG_LENGTH * 8, data, 0, NONCE_LENGTH));
+		cipher.updateAAD(aad);
+		return cipher.doFinal(data, NONCE_LENGTH, data.length - NONCE_LENGTH);
+	}
+
+	private byte[] record(byte operation, String path, long size, int recordNumber) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try(DataOutputStream out = new DataOutputStream(bytes)) {
+			out.writeByte(operation);
+			out.writeUTF(path);
+			out.writeLong(size);
+		}
+		byte[] sealed;
+		try {
+			sealed = seal(Cipher.ENCRYPT_MODE, bytes.toByteArray(), recordNumber);
+		} catch(GeneralSecurityException e) {
+			throw new IOException("Couldn't encrypt manifest record.", e);
+		}
+		return ByteBuffer.allocate(4 + sealed.length).putInt(sealed.length).put(sealed).array();
+	}
+
+	private void append(byte operation, String path, long size) throws IOException {
+		if(lockChannel == null) {
+			return;
+		}
+		ByteBuffer buffer = ByteBuffer.wrap(record(operation, path, size, records));
+		long position = log.size();
+		while(buffer.hasRemaining()) {
+			position += log.write(buffer, position);
+		}
+		log.force(false);
+		records++;
+
+		if(records >= COMPACT_MIN_RECORDS && records > entries * 2) {
+			writeLog();
+		}
+	}
+
+	// the whole state as one record per entry, parents before children
+	private void writeLog() throws IOException {
+		if(lockChannel == null) {
+			return;
+		}
+		Path tmpPath = logPath.resolveSibling(FILE_NAME + ".tmp");
+		int written = 0;
+		try(FileChannel channel = FileChannel.open(tmpPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)))) {
+			out.write(StorageFormat.header(StorageFormat.MANIFEST));
+			out.writeInt(wrappedKey.length);
+			out.write(wrappedKey);
+
+			Deque<String> pending = new ArrayDeque<>(List.of(""));
+			while(!pending.isEmpty()) {
+				String dir = pending.poll();
+				for(Map.Entry<String, Long> entry : children.get(dir).entrySet()) {
+					String path = dir.isEmpty() ? entry.getKey() : dir + "/" + entry.getKey();
+					out.write(record(PUT, path, entry.getValue(), written++));
+					if(entry.getValue() == DIRECTORY) {
+						pending.add(path);
+					}
+				}
+			}
+			out.flush();
+			channel.force(true);
+		}
+
+		if(log != null) {
+			log.close();
+		}
+		Files.move(tmpPath, logPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		log = FileChannel.open(logPath, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		records = written;
+	}
+
+	// -------------------------------------------------------------
+	// reconciler for changes made outside EFS
+
+	public synchronized void startWatching() throws IOException {
+		if(watcher != null) {
+			return;
+		}
+		watcher = root.getFileSystem().newWatchService();
+		for(String dir : List.copyOf(children.keySet())) {
+			watch(dir);
+		}
+		watcherThread = new Thread(this::watchLoop, "manifest-watcher");
+		watcherThread.setDaemon(true);
+		watcherThread.start();
+	}
+
+	private void watch(String dir) {
+		if(watcher == null) {
+			return;
+		}
+		Path path = dir.isEmpty() ? root : root.resolve(dir);
+		try {
+			watched.put(path.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY), path);
+		} catch(IOException e) {
+			// gone already, its delete event takes care of it
+		}
+	}
+
+	private void watchLoop() {
+		// close() drops the field, the closed service ends the loop
+		WatchService watcher;
+		synchronized(this) {
+			watcher = this.watcher;
+		}
+		if(watcher == null) {
+			return;
+		}
+		try {
+			while(true) {
+				// a file being written fires many events, they're collected until the directory is quiet
+				Set<Path> changed = new LinkedHashSet<>();
+				boolean overflow = false;
+				WatchKey watchKey = watcher.take();
+				while(watchKey != null) {
+					Path dir;
+					synchronized(this) {
+						dir = watched.get(watchKey);
+					}
+					for(WatchEvent<?> event : watchKey.pollEvents()) {
+						if(event.kind() == StandardWatchEventKinds.OVERFLOW) {
+							overflow = true;
+						} else if(dir != null) {
+							changed.add(dir.resolve((Path) event.context()));
+						}
+					}
+					if(!watchKey.reset()) {
+						synchronized(this) {
+							watched.remove(watchKey);
+						}
+					}
+					watchKey = watcher.poll(100, java.util.concurrent.TimeUnit.MILLISECONDS);
+				}
+
+				try {
+					if(overflow) {
+						reconcile(root, true);
+					} else {
+						for(Path path : changed) {
+							reconcile(path, false);
+						}
+					}
+				} catch(IOException e) {
+					System.err.println("Couldn't update directory manifest: " + e.getMessage());
+				}
+			}
+		} catch(InterruptedException | ClosedWatchServiceException e) {
+			// closed
+		}
+	}
+
+	// brings the entry of one path in line with the file system. a directory EFS doesn't know yet (or
+	// every directory, with full) is listed as well, it may have been copied in as a whole tree
+	private synchronized void reconcile(Path path, boolean full) throws IOException {
+		if(watcher == null || path.getFileName().toString().startsWith(FILE_NAME)) {
+			return;
+		}
+		Path relative = root.relativize(path);
+		String key = key(relative);
+
+		if(Files.isDirectory(path)) {
+			if(!full && children.containsKey(key)) {
+				return;
+			}
+			put(key, DIRECTORY);
+			Set<String> present = new HashSet<>();
+			try(Stream<Path> paths = Files.list(path)) {
+				for(Path child : paths.toList()) {
+					String name = child.getFileName().toString();
+					if(Files.isDirectory(child)) {
+						present.add(name);
+						reconcile(child, full);
+					} else if(name.endsWith(".enc")) {
+						present.add(name);
+						put(key(root.relativize(child)), Files.size(child));
+					}
+				}
+			}
+			for(String name : list(relative).keySet()) {
+				if(!present.contains(name)) {
+					remove(relative.resolve(name));
+				}
+			}
+		} else if(Files.isRegularFile(path) && key.endsWith(".enc")) {
+			put(key, Files.size(path));
+		} else if(!Files.exists(path)) {
+			remove(relative);
+		}
+	}
+
+	// the manifest stays open until its last user closes it
+	@Override
+	public void close() throws IOException {
+		// closed before the next open() of root can run, it would find the file lock still held
+		synchronized(opened) {
+			if(--handles > 0) {
+				return;
+			}
+			opened.remove(root);
+			synchronized(this) {
+				try {
+					if(watcher != null) {
+						watcher.close();
+						watcher = null;
+						watcherThread.interrupt();
+					}
+					if(log != null) {
+						log.close();
+						log = null;
+					}
+				} finally {
+					if(lockChannel != null) {
+						lockChannel.close();
+					}
+					key = null;
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,168 @@
+package utl;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.nio.file.attribute.*;
+import java.util.concurrent.*;
+
+// one stored file as a single object: everything needed to open it in front of the ciphertext
+// magic | format version | metadata length (int) | metadata (.meta format) | signature length (int) | signature | payload (.enc format)
+// files stored before this format are triplets (x.enc, x.meta and x.sgn for shared files),
+// open() reads both kinds so callers don't have to care
+public class EFSObject {
+	// far above what any number of key slots or any rsa key needs, a header asking for more is corrupted
+	private static final int MAX_METADATA_LENGTH = 16 * 1024 * 1024;
+	private static final int MAX_SIGNATURE_LENGTH = 64 * 1024;
+
+	private Path path;
+	private FileMetadata metadata;
+	private byte[] signature;
+	private long payloadOffset;
+	private String metadataIdentity;
+
+	private EFSObject(Path path, FileMetadata metadata, byte[] signature, long payloadOffset, String metadataIdentity) {
+		this.path = path;
+		this.metadata = metadata;
+		this.signature = signature;
+		this.payloadOffset = payloadOffset;
+		this.metadataIdentity = metadataIdentity;
+	}
+
+	public static boolean isObject(Path encryptedFilePath) throws IOException {
+		return StorageFormat.version(encryptedFilePath) == StorageFormat.OBJECT;
+	}
+
+	public static Path metadataPath(Path encryptedFilePath) {
+		return encryptedFilePath.resolveSibling(encryptedFilePath.getFileName().toString().replace(".enc", ".meta"));
+	}
+
+	public static Path signaturePath(Path encryptedFilePath) {
+		return encryptedFilePath.resolveSibling(encryptedFilePath.getFileName().toString().replace(".enc", ".sgn"));
+	}
+
+	// throws NoSuchFileException if the file (or the .meta of a triplet) doesn't exist
+	public static EFSObject open(Path encryptedFilePath) throws Exception{
+		// attributes are read before the contents, a change in between gives a newer identity
+		String identity = identity(encryptedFilePath);
+		long size = Files.size(encryptedFilePath);
+		try(DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(encryptedFilePath)))) {
+			byte[] header = in.readNBytes(StorageFormat.HEADER_LENGTH);
+			if(StorageFormat.version(header) == StorageFormat.OBJECT) {
+				// lengths are checked against what is left of the file before anything is allocated
+				long left = size - StorageFormat.HEADER_LENGTH - 4;
+				byte[] metadataBytes = new byte[checkedLength(in.readInt(), MAX_METADATA_LENGTH, left)];
+				in.readFully(metadataBytes);
+				left -= metadataBytes.length + 4;
+				byte[] signature = new byte[checkedLength(in.readInt(), MAX_SIGNATURE_LENGTH, left)];
+				in.readFully(signature);
+
+				long payloadOffset = StorageFormat.HEADER_LENGTH + 4 + metadataBytes.length + 4 + signature.length;
+				return new EFSObject(encryptedFilePath, FileMetadata.parse(metadataBytes), signature.length > 0 ? signature : null, payloadOffset, identity);
+			}
+		} catch(EOFException e) {
+			throw new IllegalArgumentException("Object header is incomplete or corrupted.");
+		}
+
+		// older triplet
+		Path metadataFilePath = metadataPath(encryptedFilePath);
+		String metadataIdentity = identity(metadataFilePath);
+		FileMetadata metadata = FileMetadata.read(metadataFilePath);
+		Path signatureFilePath = signaturePath(encryptedFilePath);
+		byte[] signature = Files.exists(signatureFilePath) ? EncryptionUtil.readSignature(signatureFilePath) : null;
+		return new EFSObject(encryptedFilePath, metadata, signature, 0, metadataIdentity);
+	}
+
+	private static int checkedLength(int length, int max, long left) {
+		if(length < 0 || length > max || length > left) {
+			throw new IllegalArgumentException("Object header is incomplete or corrupted.");
+		}
+		return length;
+	}
+
+	// file (inode where the filesystem has one, path otherwise) + modification time + size
+	private static String identity(Path filePath) throws IOException {
+		BasicFileAttributes attributes = Files.readAttributes(filePath, BasicFileAttributes.class);
+		Object fileKey = attributes.fileKey() != null ? attributes.fileKey() : filePath.toAbsolutePath().normalize();
+		return fileKey + "|" + attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS) + "|" + attributes.size();
+	}
+
+	// writes the header at the start of the file and returns where the payload begins
+	// (rewriting it later is fine as long as the metadata keeps its length)
+	public static long writeHeader(FileChannel channel, byte[] metadataBytes, byte[] signature) throws IOException {
+		int signatureLength = signature != null ? signature.length : 0;
+		ByteBuffer header = ByteBuffer.allocate(StorageFormat.HEADER_LENGTH + 4 + metadataBytes.length + 4 + signatureLength);
+		header.put(StorageFormat.header(StorageFormat.OBJECT)).putInt(metadataBytes.length).put(metadataBytes).putInt(signatureLength);
+		if(signature != null) {
+			header.put(signature);
+		}
+		header.flip();
+
+		long payloadOffset = header.limit();
+		while(header.hasRemaining()) {
+			channel.write(header, header.position());
+		}
+		return payloadOffset;
+	}
+
+	// converts x.enc, x.meta and x.sgn into a single x.enc object, nothing is decrypted
+	// returns false if the file is already an object or its .meta is missing
+	public static boolean migrate(Path encryptedFilePath) throws Exception{
+		Path metadataFilePath = metadataPath(encryptedFilePath);
+		Path signatureFilePath = signaturePath(encryptedFilePath);
+
+		if(isObject(encryptedFilePath)) {
+			// left over if an earlier run stopped right after replacing the .enc
+			Files.deleteIfExists(metadataFilePath);
+			Files.deleteIfExists(signatureFilePath);
+			return false;
+		}
+		if(!Files.exists(metadataFilePath)) {
+			return false;
+		}
+
+		byte[] metadataBytes = Files.readAllBytes(metadataFilePath);
+		FileMetadata.parse(metadataBytes);
+		byte[] signature = Files.exists(signatureFilePath) ? EncryptionUtil.readSignature(signatureFilePath) : null;
+
+		Path tmpPath = encryptedFilePath.resolveSibling(encryptedFilePath.getFileName() + ".tmp");
+		try(FileChannel in = FileChannel.open(encryptedFilePath, StandardOpenOption.READ);
+			FileChannel out = FileChannel.open(tmpPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			long offset = writeHeader(out, metadataBytes, signature);
+			long size = in.size();
+			long copied = 0;
+			while(copied < size) {
+				copied += in.transferTo(copied, size - copied, out.position(offset + copied));
+			}
+			out.force(true);
+		}
+
+		Files.move(tmpPath, encryptedFilePath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		Files.deleteIfExists(metadataFilePath);
+		Files.deleteIfExists(signatureFilePath);
+		return true;
+	}
+
+	public Path getPath() {
+		return path;
+	}
+
+	public FileMetadata getMetadata() {
+		return metadata;
+	}
+
+	// raw signature of the plain text, null if there is none
+	public byte[] getSignature() {
+		return signature;
+	}
+
+	public long getPayloadOffset() {
+		return payloadOffset;
+	}
+
+	// identifies the metadata as it was read (the object, or the .meta of a triplet), changes whenever the file does
+	public String getMetadataIdentity() {
+		return metadataIdentity;
+	}
+}
@@ -1,252 +1,342 @@
 package utl;
 
 import java.io.*;
+import java.nio.channels.*;
 import java.nio.file.*;
 import java.nio.charset.StandardCharsets;
 import java.security.*;
-import java.util.Base64;
+import java.security.interfaces.RSAKey;
+import java.security.spec.MGF1ParameterSpec;
+import java.util.*;
+import java.util.concurrent.*;
+import javax.crypto.*;
+import javax.crypto.spec.*;
 
 import system.EFSystem;
 
 public class EncryptionUtil {
+	private static final SecureRandom random = new SecureRandom();
+	private static final OAEPParameterSpec OAEP_PARAMETERS = new OAEPParameterSpec("SHA-256", "MGF1", MGF1ParameterSpec.SHA256, PSource.PSpecified.DEFAULT);
+	private static final long PARALLEL_THRESHOLD = EFSystem.pr.getLongProperty("PARALLEL_THRESHOLD", 8 * 1024 * 1024);
+	private static final long MAPPED_THRESHOLD = EFSystem.pr.getLongProperty("MAPPED_THRESHOLD", 256L * 1024 * 1024);
+	private static ForkJoinPool pool;
 	private String EFS_USER_HOME;
+	private Path chunkStoreDir;
 	
 	public EncryptionUtil(String username) {
 		this.EFS_USER_HOME = EFSystem.pr.getProperty("ROOT_BASE") + username + File.separator;
+		this.chunkStoreDir = ChunkStore.storeDir(username);
 		File userHome = new File(EFS_USER_HOME);
 		if(!userHome.exists()) {
 			userHome.mkdir();
 		}
 	}
 	
-	// logging in
-	public static String hashPasswordWithSalt(String password, String salt) {
-		try {
-			ProcessBuilder pb = new ProcessBuilder("wsl", "openssl", "passwd", "-1", "-salt", salt, password);
-			return executeProcess(pb);
-		} catch(Exception e){
-			System.out.println("Unable to generate password hash...");
-			return "";
-		}
+	// digest: SHA-256, SHA-512, MD5
+	public static MessageDigest newDigest(String algorithm) throws Exception{
+		return MessageDigest.getInstance(validateDGSTAlgorithm(algorithm));
 	}
 	
-	// registration
-	public static String hashPassword(String password){
-		try {
-			String salt = generateSalt(8);
-			ProcessBuilder pb = new ProcessBuilder("wsl", "openssl", "passwd", "-1", "-salt", salt, password);
-			return executeProcess(pb);
-		} catch(Exception e) {
-			System.out.println("Unable to generate password hash...");
-			return "";
+	public String encryptAES(Path inputPath, Path destinationPath, String key, String algorithm, String iv) throws Exception{
+		return encryptAES(inputPath, destinationPath, key, algorithm, iv, null);
+	}
+	
+	// symmetric encryption: AES-128, AES-192, AES-256 (seekable chunked AES-GCM container)
+	// observer gets the plaintext on the same read that encrypts it
+	public String encryptAES(Path inputPath, Path destinationPath, String key, String algorithm, String iv, PlaintextObserver observer) throws Exception{
+		Path encryptedPath = destinationPath.resolve(inputPath.getFileName().toString() + ".enc");
+		
+		try(FileChannel out = FileChannel.open(encryptedPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			encryptAES(inputPath, out, 0, key, algorithm, iv, observer);
 		}
+		return encryptedPath.toString();
 	}
 	
-	public static String generateSalt(int length) throws Exception{
-		byte[] salt = new byte[length];
-		new SecureRandom().nextBytes(salt);
+	// writes the container at offset of an already open file (EFSObject puts its header in front)
+	public void encryptAES(Path inputPath, FileChannel out, long offset, String key, String algorithm, String iv, PlaintextObserver observer) throws Exception{
+		validateAESAlgorithm(algorithm);
+		byte[] noncePrefix = Arrays.copyOf(HexFormat.of().parseHex(iv), ChunkedContainer.NONCE_PREFIX_LENGTH);
 		
-		StringBuilder hexString = new StringBuilder();
-		for(byte b: salt) {
-			hexString.append(String.format("%02x",b));
+		long size = Files.size(inputPath);
+		if(size >= PARALLEL_THRESHOLD || isMapped(size)) {
+			try(FileChannel in = FileChannel.open(inputPath, StandardOpenOption.READ)) {
+				if(isMapped(size)) {
+					ChunkedContainer.encryptMapped(in, out, offset, HexFormat.of().parseHex(key), noncePrefix, getPool(), observer);
+				} else {
+					ChunkedContainer.encryptParallel(in, out, offset, HexFormat.of().parseHex(key), noncePrefix, getPool(), observer);
+				}
+			}
+			return;
 		}
 		
-		return hexString.toString();
+		try(InputStream in = Files.newInputStream(inputPath)) {
+			encryptAES(in, out, offset, key, algorithm, iv, observer);
+		}
 	}
 	
-	// digest: SHA-256, SHA-512, MD5
-	public String hash(Path inputPath, String algorithm) throws Exception {
-		String validAlg = validateDGSTAlgorithm(algorithm);
-		ProcessBuilder pb = new ProcessBuilder("wsl", "openssl", "dgst", "-" + validAlg, convertToWSLPath(inputPath));
-		String result = executeProcess(pb);
+	// plain text of unknown length (e.g. a request body), always encrypted sequentially
+	public void encryptAES(InputStream in, FileChannel out, long offset, String key, String algorithm, String iv, PlaintextObserver observer) throws Exception{
+		validateAESAlgorithm(algorithm);
+		byte[] noncePrefix = Arrays.copyOf(HexFormat.of().parseHex(iv), ChunkedContainer.NONCE_PREFIX_LENGTH);
 		
-		return result;
+		out.truncate(offset);
+		out.position(offset);
+		// not closed, that would close the caller's channel
+		OutputStream bufferedOut = new BufferedOutputStream(Channels.newOutputStream(out), CipherEngine.BUFFER_SIZE);
+		ChunkedContainer.encrypt(in, bufferedOut, HexFormat.of().parseHex(key), noncePrefix, observer);
+		bufferedOut.flush();
 	}
 	
-	// symmetric encryption: AES-128, AES-192, AES-256
-	public String encryptAES(Path inputPath, Path destinationPath, String key, String algorithm, String iv) throws Exception{
-		Path encryptedPath = destinationPath.resolve(inputPath.getFileName().toString() + ".enc");
-		
-		String validAlg = validateAESAlgorithm(algorithm);
-		
-		ProcessBuilder pb = new ProcessBuilder("wsl", "openssl", "enc", "-" + validAlg, "-in", convertToWSLPath(inputPath), "-K", key, "-iv", iv, "-out" , convertToWSLPath(encryptedPath), "-base64");
-		executeProcess(pb);
-		return encryptedPath.toString();
+	// plain text cut into the user's chunk store, the payload at offset is only the chunk list
+	public List<ChunkStore.Ref> encryptDeduplicated(InputStream in, FileChannel out, long offset, String key, String algorithm, String iv, PlaintextObserver observer, ChunkStore store) throws Exception{
+		validateAESAlgorithm(algorithm);
+		byte[] noncePrefix = Arrays.copyOf(HexFormat.of().parseHex(iv), ChunkedContainer.NONCE_PREFIX_LENGTH);
+		return store.write(in, out, offset, HexFormat.of().parseHex(key), noncePrefix, observer);
+	}
+	
+	// chunks a deduplicated payload refers to, empty for any other payload
+	public List<ChunkStore.Ref> chunkRefs(Path encryptedFilePath, long offset, String key) throws Exception{
+		if(!ChunkStore.isChunkList(encryptedFilePath, offset)) {
+			return List.of();
+		}
+		return ChunkStore.readList(encryptedFilePath, offset, HexFormat.of().parseHex(key));
 	}
 	
-	// symmetric decryption
 	public String decryptAES(Path encryptedFilePath, Path destinationPath, String key, String algorithm, String iv) throws Exception{
+		return decryptAES(encryptedFilePath, 0, destinationPath, key, algorithm, iv, null);
+	}
+	
+	// symmetric decryption: containers, deduplicated files and older base64 AES-CBC files, starting at offset of the file
+	// observer gets the plaintext as it is written, so it can be verified without reading it back
+	public String decryptAES(Path encryptedFilePath, long offset, Path destinationPath, String key, String algorithm, String iv, PlaintextObserver observer) throws Exception{
 		Path decryptedPath = Path.of(destinationPath.toString(),encryptedFilePath.getFileName().toString().replace(".enc", ""));
-		
-		String validAlg = validateAESAlgorithm(algorithm);
-		ProcessBuilder pb = new ProcessBuilder("wsl", "openssl", "enc", "-d", "-" + validAlg, "-in", convertToWSLPath(encryptedFilePath), "-K", key, "-iv", iv, "-out", convertToWSLPath(decryptedPath), "-base64");
-		executeProcess(pb);
+		decryptAESToFile(encryptedFilePath, offset, decryptedPath, key, algorithm, iv, observer);
 		return decryptedPath.toString();
 	}
 	
+	// same, into the given file (replaced if it exists)
+	public void decryptAESToFile(Path encryptedFilePath, long offset, Path decryptedPath, String key, String algorithm, String iv, PlaintextObserver observer) throws Exception{
+		validateAESAlgorithm(algorithm);
+		
+		if(ChunkedContainer.isContainer(encryptedFilePath, offset)) {
+			long size = Files.size(encryptedFilePath) - offset;
+			if(size >= PARALLEL_THRESHOLD || isMapped(size)) {
+				try(FileChannel in = FileChannel.open(encryptedFilePath, StandardOpenOption.READ);
+					FileChannel out = FileChannel.open(decryptedPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+					if(isMapped(size)) {
+						ChunkedContainer.decryptMapped(in, offset, out, HexFormat.of().parseHex(key), getPool(), observer);
+					} else {
+						ChunkedContainer.decryptParallel(in, offset, out, HexFormat.of().parseHex(key), getPool(), observer);
+					}
+				}
+				return;
+			}
+			
+		}
+		
+		try(OutputStream out = Files.newOutputStream(decryptedPath)) {
+			decryptAES(encryptedFilePath, offset, out, key, algorithm, iv, observer);
+		}
+	}
+	
+	// sequential decryption into a stream (e.g. a response body), the stream is left open
+	public void decryptAES(Path encryptedFilePath, long offset, OutputStream out, String key, String algorithm, String iv, PlaintextObserver observer) throws Exception{
+		validateAESAlgorithm(algorithm);
+		
+		if(ChunkedContainer.isContainer(encryptedFilePath, offset)) {
+			ChunkedContainer.decrypt(encryptedFilePath, offset, out, HexFormat.of().parseHex(key), observer);
+			return;
+		}
+		if(ChunkStore.isChunkList(encryptedFilePath, offset)) {
+			ChunkStore.decrypt(chunkStoreDir, encryptedFilePath, offset, out, HexFormat.of().parseHex(key), observer);
+			return;
+		}
+		
+		Cipher cipher = CipherEngine.newCBCCipher(Cipher.DECRYPT_MODE, key, iv);
+		try(InputStream in = new BufferedInputStream(Files.newInputStream(encryptedFilePath), CipherEngine.BUFFER_SIZE)) {
+			in.skipNBytes(offset);
+			CipherEngine.decryptBase64(cipher, in, out, observer);
+		}
+	}
+	
+	// files from MAPPED_THRESHOLD up are read through memory mappings instead of heap buffers, 0 turns it off
+	private static boolean isMapped(long size) {
+		return MAPPED_THRESHOLD > 0 && size >= MAPPED_THRESHOLD;
+	}
+	
+	// pool for large files, PARALLELISM=0 uses every core
+	public static synchronized ForkJoinPool getPool() {
+		if(pool == null) {
+			int parallelism = (int) EFSystem.pr.getLongProperty("PARALLELISM", 0);
+			pool = new ForkJoinPool(parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors());
+		}
+		return pool;
+	}
+	
+	public static synchronized void setPool(ForkJoinPool customPool) {
+		pool = customPool;
+	}
+	
+	// random access to a container, only the chunks that are read get decrypted
+	public SeekableByteChannel openAES(Path encryptedFilePath, long offset, String key) throws Exception{
+		if(ChunkStore.isChunkList(encryptedFilePath, offset)) {
+			return new ChunkStore.Reader(chunkStoreDir, encryptedFilePath, offset, HexFormat.of().parseHex(key));
+		}
+		if(!ChunkedContainer.isContainer(encryptedFilePath, offset)) {
+			throw new IllegalArgumentException("File was stored in the old format and can only be downloaded as a whole.");
+		}
+		return new ChunkedContainer.Reader(FileChannel.open(encryptedFilePath, StandardOpenOption.READ), offset, HexFormat.of().parseHex(key));
+	}
+	
 	// generate key for encryption: AES
 	public String generateKey(String algorithm, Integer length) throws Exception{
-		if("AES".equalsIgnoreCase("AES") && (length.equals(128) || length.equals(192) || length.equals(256))) {
-			return executeProcess(new ProcessBuilder("wsl", "openssl", "rand", "-hex", String.valueOf(length/8)));
+		if("AES".equalsIgnoreCase(algorithm) && (length.equals(128) || length.equals(192) || length.equals(256))) {
+			return randomHex(length/8);
 		} else {
 			throw new InvalidKeyException("Invalid key length for the specified algorithm.");
 		}
 	}
 	
+	// generate iv for encryption: AES block size
+	public String generateIV() {
+		return randomHex(16);
+	}
+	
+	private static String randomHex(int length) {
+		byte[] bytes = new byte[length];
+		random.nextBytes(bytes);
+		return HexFormat.of().formatHex(bytes);
+	}
+	
 	// -------------------------------------------------------------
 	
-	// RSA encryption
-	public String encryptRSA(String data, Path pubKeyPath) throws Exception{
-		File tmpFile = File.createTempFile("metadata", ".tmp");
-		try(BufferedWriter writer = new BufferedWriter(new FileWriter(tmpFile))){
-			writer.write(data);
+	// RSA key wrapping: the whole envelope is encrypted with one RSA-OAEP operation
+	public byte[] wrapKeys(KeyEnvelope envelope, PublicKey publicKey) throws Exception{
+		Cipher rsa = Cipher.getInstance("RSA/ECB/OAEPPadding");
+		rsa.init(Cipher.ENCRYPT_MODE, publicKey, OAEP_PARAMETERS);
+		byte[] packed = envelope.pack();
+		try {
+			return rsa.doFinal(packed);
+		} finally {
+			Arrays.fill(packed, (byte) 0);
 		}
-		
-		Path tmpPath = tmpFile.toPath();
-		
-		File encryptedTmp = File.createTempFile("encrypted", ".bin");
-		
-		ProcessBuilder pbEncrypt = new ProcessBuilder("wsl", "openssl", "pkeyutl", "-encrypt", "-pubin", "-inkey", convertToWSLPath(pubKeyPath).toString(), "-in", convertToWSLPath(tmpPath), "-out", convertToWSLPath(encryptedTmp.toPath()));
-		int encryptExitCode = executeProcessWithExitCode(pbEncrypt);
-		
-		if(encryptExitCode != 0) {
-			throw new RuntimeException("RSA encryption failed with exit code: " + encryptExitCode);
+	}
+	
+	public KeyEnvelope unwrapKeys(byte[] wrappedKeys, PrivateKey privateKey) throws Exception{
+		Cipher rsa = Cipher.getInstance("RSA/ECB/OAEPPadding");
+		rsa.init(Cipher.DECRYPT_MODE, privateKey, OAEP_PARAMETERS);
+		byte[] packed = rsa.doFinal(wrappedKeys);
+		try {
+			return KeyEnvelope.unpack(packed);
+		} finally {
+			Arrays.fill(packed, (byte) 0);
 		}
-		
-		ProcessBuilder pbBase64 = new ProcessBuilder("wsl", "openssl", "base64", "-e", "-in", convertToWSLPath(encryptedTmp.toPath()));
-		String b64Encoded = executeProcess(pbBase64).trim();
-		
-		tmpFile.delete();
-		encryptedTmp.delete();
-		return b64Encoded;
 	}
 	
-	// RSA decryption
-	public String decryptRSA(String encryptedDataB64, Path privateKeyPath) throws Exception{
-		byte[] encryptedData = Base64.getMimeDecoder().decode(encryptedDataB64.trim());
-		
-		File tmpFile = File.createTempFile("encrypted", ".bin");
-		try(BufferedOutputStream bos = new BufferedOutputStream(new FileOutputStream(tmpFile))) {
-			bos.write(encryptedData);
+	// keys of any .meta file: one envelope, or the older separately encrypted fields
+	public KeyEnvelope unwrapKeys(FileMetadata metadata, PrivateKey privateKey) throws Exception{
+		if(metadata.hasEnvelope()) {
+			return unwrapKeys(metadata.getWrappedKeys(), privateKey);
 		}
 		
-		Path tmpPath = tmpFile.toPath();
-		
-		File decryptedTmp = File.createTempFile("decrypted", ".txt");
-		
-		ProcessBuilder pbDecrypt = new ProcessBuilder("wsl", "openssl", "pkeyutl", "-decrypt", "-inkey", convertToWSLPath(privateKeyPath), "-in", convertToWSLPath(tmpPath), "-out", convertToWSLPath(decryptedTmp.toPath()));
-		int decryptExitCode = executeProcessWithExitCode(pbDecrypt);
-		if(decryptExitCode != 0) {
-			throw new RuntimeException("RSA decryption with exit code " + decryptExitCode);
+		String algorithm = decryptRSA(metadata.getEncryptedAlg(), privateKey);
+		String iv = decryptRSA(metadata.getEncryptedIV(), privateKey);
+		String key = decryptRSA(metadata.getEncryptedKey(), privateKey);
+		String sender = metadata.getEncryptedSender() != null ? decryptRSA(metadata.getEncryptedSender(), privateKey) : null;
+		return new KeyEnvelope(algorithm, key, iv, sender);
+	}
+	
+	// keys of a shared file from the recipient's key slot, files without slots have a single envelope
+	public KeyEnvelope unwrapKeys(FileMetadata metadata, String fingerprint, PrivateKey privateKey) throws Exception{
+		if(!metadata.hasKeySlots()) {
+			return unwrapKeys(metadata, privateKey);
 		}
-		
-		String decryptedData = new String(Files.readAllBytes(decryptedTmp.toPath()), StandardCharsets.UTF_8);
-		
-		tmpFile.delete();
-		decryptedTmp.delete();
-		
-		return decryptedData;
+		byte[] wrappedKeys = metadata.getWrappedKeys(fingerprint);
+		if(wrappedKeys == null) {
+			throw new IllegalArgumentException("File isn't shared with you.");
+		}
+		return unwrapKeys(wrappedKeys, privateKey);
 	}
 	
-	// -------------------------------------------------------------------
+	// identifies a recipient in key slots without naming them: SHA-256 of the encoded public key, hex
+	public static String fingerprint(PublicKey publicKey) throws Exception{
+		return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(publicKey.getEncoded()));
+	}
 	
-	// digital signature
-	public Path signData(Path inputFilePath, Path destinationPath, Path privateKeyPath) throws Exception{
-		Path signedPath = destinationPath.resolve(inputFilePath.getFileName().toString() + ".sgn");
-		
-		ProcessBuilder pb = new ProcessBuilder("wsl", "openssl", "dgst", "-sha256", "-sign", convertToWSLPath(privateKeyPath).toString(), "-out", convertToWSLPath(signedPath).toString(), convertToWSLPath(inputFilePath).toString());
-		executeProcess(pb);
-		
-		ProcessBuilder pbBase64 = new ProcessBuilder("wsl", "openssl", "base64", "-e", "-in", convertToWSLPath(signedPath));
-		String b64Encoded = executeProcess(pbBase64).trim();
-		
-		Files.writeString(signedPath, b64Encoded, StandardCharsets.UTF_8);
-		
-		return signedPath;
+	// RSA decryption of older metadata fields (openssl pkeyutl default padding)
+	public String decryptRSA(byte[] encryptedData, PrivateKey privateKey) throws Exception{
+		Cipher rsa = Cipher.getInstance("RSA/ECB/PKCS1Padding");
+		rsa.init(Cipher.DECRYPT_MODE, privateKey);
+		return new String(rsa.doFinal(encryptedData), StandardCharsets.UTF_8);
 	}
 	
-	public boolean verifySignature(Path originalFilePath, Path signatureFilePath, Path publicKeyPath) throws Exception{
-		String b64Signature = Files.readString(signatureFilePath, StandardCharsets.UTF_8);
-		byte[] signatureBytes = Base64.getMimeDecoder().decode(b64Signature);
-		Path tmpBinSignature = Files.createTempFile("signature", ".bin");
-		Files.write(tmpBinSignature, signatureBytes);
-		
-		ProcessBuilder pb = new ProcessBuilder("wsl", "openssl", "dgst", "-sha256", "-verify", convertToWSLPath(publicKeyPath).toString(), "-signature", convertToWSLPath(tmpBinSignature).toString(), convertToWSLPath(originalFilePath).toString());
-		boolean isVerified = executeProcess(pb).contains("Verified OK");
-		
-		Files.deleteIfExists(tmpBinSignature);
-		return isVerified;
+	// -------------------------------------------------------------------
+	
+	// same signature scheme as openssl dgst -sha256 -sign (PKCS#1 v1.5, SHA-256)
+	// fed with PlaintextObserver.of() on the pass that encrypts or decrypts, there's no separate read
+	public static Signature newSigner(PrivateKey privateKey) throws Exception{
+		Signature signature = Signature.getInstance("SHA256withRSA");
+		signature.initSign(privateKey);
+		return signature;
 	}
 	
-	// -------------------------------------------------------------
+	public static Signature newVerifier(PublicKey publicKey) throws Exception{
+		Signature signature = Signature.getInstance("SHA256withRSA");
+		signature.initVerify(publicKey);
+		return signature;
+	}
 	
-	// mapping windows path to wsl path
-	public static String convertToWSLPath(Path windowsPath) {
-		String windowsPathStr = windowsPath.toString();
-
-		return "/mnt/" + Character.toLowerCase(windowsPathStr.charAt(0)) + windowsPathStr.substring(2).replace("\\", "/");
+	// signatures are as long as the modulus, so room for one can be left before anything is signed
+	public static int signatureLength(PrivateKey privateKey) {
+		return (((RSAKey) privateKey).getModulus().bitLength() + 7) / 8;
 	}
 	
-	public static String executeProcess(ProcessBuilder pb) throws Exception{
-		pb.redirectErrorStream(true);
-		Process process = pb.start();
-		try(BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()))){
-			StringBuilder output = new StringBuilder();
-			String line;
-			while((line = reader.readLine()) != null) {
-				output.append(line).append("\n");
-			}
-			int exitCode = process.waitFor();
-		    
-		    if (exitCode != 0) {
-		        throw new RuntimeException("couldn't perform the action...");
-		    }
-		    
-			return output.toString();
+	public static boolean verify(Signature signature, byte[] signatureBytes) throws Exception{
+		try {
+			return signature.verify(signatureBytes);
+		} catch(SignatureException e) {
+			// malformed signature
+			return false;
 		}
 	}
 	
-	private int executeProcessWithExitCode(ProcessBuilder pb) throws Exception {
-	    Process process = pb.start();
-	    
-	    try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
-	         BufferedReader errorReader = new BufferedReader(new InputStreamReader(process.getErrorStream()))) {
-	        
-	        StringBuilder output = new StringBuilder();
-	        String line;
-	        while ((line = reader.readLine()) != null) {
-	            output.append(line).append("\n");
-	        }
-
-	        StringBuilder errorOutput = new StringBuilder();
-	        while ((line = errorReader.readLine()) != null) {
-	            errorOutput.append(line).append("\n");
-	        }
-
-	        int exitCode = process.waitFor();
-	        if (exitCode != 0) {
-	            System.err.println("Error output:\n" + errorOutput);
-	        }
-
-	        return exitCode;
-	    }
+	// legacy .sgn files: binary signatures (magic | format version | raw signature) and older base64 ones
+	public static byte[] readSignature(Path signatureFilePath) throws Exception{
+		byte[] data = Files.readAllBytes(signatureFilePath);
+		if(StorageFormat.version(data) == StorageFormat.BINARY_SIGNATURE) {
+			return Arrays.copyOfRange(data, StorageFormat.HEADER_LENGTH, data.length);
+		}
+		return Base64.getMimeDecoder().decode(new String(data, StandardCharsets.UTF_8).trim());
 	}
-
-
+	
+	// -------------------------------------------------------------
+	
 	private static String validateDGSTAlgorithm(String algorithm) throws Exception{
 		switch(algorithm.toUpperCase()) {
 			case "SHA-256":
 			case "SHA2-256":
-				return "sha256";
+				return "SHA-256";
 			case "SHA-512":
 			case "SHA2-512":
-				return "sha512";
+				return "SHA-512";
 			case "MD5":
-				return "md5";
+				return "MD5";
 			default:
 				throw new IllegalArgumentException("Unsupported digest algorithm: " + algorithm);	
 		}
 	}
+	
+	// digest names as written by openssl dgst (and stored in .meta files)
+	public static String dgstLabel(String algorithm) throws Exception{
+		switch(validateDGSTAlgorithm(algorithm)) {
+			case "SHA-256":
+				return "SHA2-256";
+			case "SHA-512":
+				return "SHA2-512";
+			default:
+				return "MD5";
+		}
+	}
 
 	private static String validateAESAlgorithm(String algorithm) throws Exception{
 		switch(algorithm.toUpperCase()) {
@@ -0,0 +1,240 @@
+package utl;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+// contents of a .meta file:
+// home files:   hash (algorithm + digest), wrapped key envelope (algorithm, key, iv), [compression]
+// shared files: wrapped key envelope (algorithm, key, iv, sender), or one key slot per recipient holding
+//               the same envelope wrapped for them, found by the fingerprint of their public key
+//
+// binary format: magic | format version | flags | [hash alg | digest] | wrapped keys | [compression codec]
+//                with key slots: ... | slot count | (fingerprint | wrapped keys)*
+// older binary files have separately RSA encrypted fields instead of the envelope:
+//   ... | algorithm | iv | key | [sender]
+// text format (old files): hash=ALG:hex, algorithm=, iv=, key=, sender= with base64 RSA fields
+public class FileMetadata {
+	private static final int HAS_HASH = 1;
+	private static final int HAS_SENDER = 2;
+	private static final int HAS_ENVELOPE = 4;
+	private static final int HAS_COMPRESSION = 8;
+	private static final int HAS_KEY_SLOTS = 16;
+
+	private String hashAlg;
+	private String hash;
+	private byte[] encryptedAlg;
+	private byte[] encryptedIV;
+	private byte[] encryptedKey;
+	private byte[] encryptedSender;
+	private byte[] wrappedKeys;
+	private String compression;
+	private Map<String, byte[]> keySlots;				// hex fingerprint -> wrapped keys
+
+	public FileMetadata(String hashAlg, String hash, byte[] wrappedKeys) {
+		this(hashAlg, hash, wrappedKeys, null);
+	}
+
+	public FileMetadata(String hashAlg, String hash, byte[] wrappedKeys, String compression) {
+		this.hashAlg = hashAlg;
+		this.hash = hash;
+		this.wrappedKeys = wrappedKeys;
+		this.compression = compression;
+	}
+
+	public FileMetadata(Map<String, byte[]> keySlots) {
+		this.keySlots = new LinkedHashMap<>(keySlots);
+	}
+
+	public FileMetadata(String hashAlg, String hash, byte[] encryptedAlg, byte[] encryptedIV, byte[] encryptedKey, byte[] encryptedSender) {
+		this.hashAlg = hashAlg;
+		this.hash = hash;
+		this.encryptedAlg = encryptedAlg;
+		this.encryptedIV = encryptedIV;
+		this.encryptedKey = encryptedKey;
+		this.encryptedSender = encryptedSender;
+	}
+
+	public static FileMetadata read(Path metadataFilePath) throws Exception{
+		return parse(Files.readAllBytes(metadataFilePath));
+	}
+
+	public static FileMetadata parse(byte[] data) throws Exception{
+		if(StorageFormat.version(data) == StorageFormat.BINARY_METADATA) {
+			return readBinary(data);
+		}
+		return readText(new String(data, StandardCharsets.UTF_8).lines().toList());
+	}
+
+	private static FileMetadata readBinary(byte[] data) throws Exception{
+		try(DataInputStream in = new DataInputStream(new ByteArrayInputStream(data, StorageFormat.HEADER_LENGTH, data.length))) {
+			int flags = in.readUnsignedByte();
+			String hashAlg = null;
+			String hash = null;
+			if((flags & HAS_HASH) != 0) {
+				hashAlg = in.readUTF();
+				hash = HexFormat.of().formatHex(readField(in));
+			}
+			if((flags & HAS_KEY_SLOTS) != 0) {
+				int count = in.readUnsignedShort();
+				Map<String, byte[]> keySlots = new LinkedHashMap<>();
+				for(int i=0; i<count; i++) {
+					keySlots.put(HexFormat.of().formatHex(readField(in)), readField(in));
+				}
+				return new FileMetadata(keySlots);
+			}
+			if((flags & HAS_ENVELOPE) != 0) {
+				byte[] wrappedKeys = readField(in);
+				return new FileMetadata(hashAlg, hash, wrappedKeys, (flags & HAS_COMPRESSION) != 0 ? in.readUTF() : null);
+			}
+
+			byte[] encryptedAlg = readField(in);
+			byte[] encryptedIV = readField(in);
+			byte[] encryptedKey = readField(in);
+			byte[] encryptedSender = (flags & HAS_SENDER) != 0 ? readField(in) : null;
+			return new FileMetadata(hashAlg, hash, encryptedAlg, encryptedIV, encryptedKey, encryptedSender);
+		} catch(EOFException e) {
+			throw new IllegalArgumentException("Metadata is incomplete or corrupted.");
+		}
+	}
+
+	private static FileMetadata readText(List<String> metadataLines) throws Exception{
+		if(metadataLines.size() < 4) {
+			throw new IllegalArgumentException("Metadata is incomplete or corrupted.");
+		}
+
+		String hashAlg = null;
+		String hash = null;
+		int first = 0;
+		if(metadataLines.get(0).startsWith("hash=")) {
+			String algHash = metadataLines.get(0).split("=")[1].trim();
+			hashAlg = algHash.split(":")[0].trim();
+			hash = algHash.split(":")[1].trim();
+			first = 1;
+		}
+
+		// encrypted part of metadata
+		StringBuilder ciphertextBuilder = new StringBuilder();
+		for(int i=first; i<metadataLines.size(); i++) {
+			ciphertextBuilder.append(metadataLines.get(i));
+		}
+		String metadata = ciphertextBuilder.toString();
+
+		int algIndex = metadata.indexOf("algorithm=");
+		int ivIndex = metadata.indexOf("iv=");
+		int keyIndex = metadata.indexOf("key=");
+		int senderIndex = metadata.indexOf("sender=");
+
+		if(algIndex == -1 || ivIndex == -1 || keyIndex == -1) {
+			throw new IllegalArgumentException("Metadata does not contain a key field.");
+		}
+
+		String encryptedAlg = metadata.substring(algIndex + "algorithm=".length(), ivIndex).trim();
+		String encryptedIV = metadata.substring(ivIndex + "iv=".length(), keyIndex).trim();
+		String encryptedKey = metadata.substring(keyIndex + "key=".length(), senderIndex == -1 ? metadata.length() : senderIndex).trim();
+		String encryptedSender = senderIndex == -1 ? null : metadata.substring(senderIndex + "sender=".length()).trim();
+
+		Base64.Decoder b64 = Base64.getMimeDecoder();
+		return new FileMetadata(hashAlg, hash, b64.decode(encryptedAlg), b64.decode(encryptedIV), b64.decode(encryptedKey), encryptedSender == null ? null : b64.decode(encryptedSender));
+	}
+
+	public void write(Path metadataFilePath) throws Exception{
+		Files.write(metadataFilePath, toBytes());
+	}
+
+	public byte[] toBytes() throws Exception{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try(DataOutputStream out = new DataOutputStream(bytes)) {
+			out.write(StorageFormat.header(StorageFormat.BINARY_METADATA));
+			out.writeByte((hashAlg != null ? HAS_HASH : 0) | (encryptedSender != null ? HAS_SENDER : 0) | (wrappedKeys != null ? HAS_ENVELOPE : 0) | (compression != null ? HAS_COMPRESSION : 0) | (keySlots != null ? HAS_KEY_SLOTS : 0));
+			if(hashAlg != null) {
+				out.writeUTF(hashAlg);
+				writeField(out, HexFormat.of().parseHex(hash));
+			}
+			if(keySlots != null) {
+				out.writeShort(keySlots.size());
+				for(Map.Entry<String, byte[]> slot : keySlots.entrySet()) {
+					writeField(out, HexFormat.of().parseHex(slot.getKey()));
+					writeField(out, slot.getValue());
+				}
+			} else if(wrappedKeys != null) {
+				writeField(out, wrappedKeys);
+				if(compression != null) {
+					out.writeUTF(compression);
+				}
+			} else {
+				writeField(out, encryptedAlg);
+				writeField(out, encryptedIV);
+				writeField(out, encryptedKey);
+				if(encryptedSender != null) {
+					writeField(out, encryptedSender);
+				}
+			}
+		}
+		return bytes.toByteArray();
+	}
+
+	private static void writeField(DataOutputStream out, byte[] field) throws IOException {
+		out.writeShort(field.length);
+		out.write(field);
+	}
+
+	private static byte[] readField(DataInputStream in) throws IOException {
+		byte[] field = new byte[in.readUnsignedShort()];
+		in.readFully(field);
+		return field;
+	}
+
+	public String getHashAlg() {
+		return hashAlg;
+	}
+
+	public String getHash() {
+		return hash;
+	}
+
+	// codec the plain text was compressed with before encryption, null if it wasn't
+	public String getCompression() {
+		return compression;
+	}
+
+	// false for older files whose algorithm, iv, key and sender are RSA encrypted one by one
+	public boolean hasEnvelope() {
+		return wrappedKeys != null;
+	}
+
+	public byte[] getWrappedKeys() {
+		return wrappedKeys;
+	}
+
+	// true for shared files with a key slot per recipient
+	public boolean hasKeySlots() {
+		return keySlots != null;
+	}
+
+	// keys wrapped for the recipient with the fingerprint, null if the file isn't shared with them
+	public byte[] getWrappedKeys(String fingerprint) {
+		return keySlots != null ? keySlots.get(fingerprint) : null;
+	}
+
+	public Set<String> getRecipients() {
+		return keySlots != null ? Collections.unmodifiableSet(keySlots.keySet()) : Set.of();
+	}
+
+	public byte[] getEncryptedAlg() {
+		return encryptedAlg;
+	}
+
+	public byte[] getEncryptedIV() {
+		return encryptedIV;
+	}
+
+	public byte[] getEncryptedKey() {
+		return encryptedKey;
+	}
+
+	public byte[] getEncryptedSender() {
+		return encryptedSender;
+	}
+}
@@ -0,0 +1,45 @@
+package utl;
+
+import java.io.*;
+import java.util.*;
+
+// bounded LRU of unwrapped file keys for one session, keyed by EFSObject.getMetadataIdentity()
+// so a changed file never hits an old entry. envelopes are kept packed so they can be zeroed
+public class KeyCache {
+	private final int capacity;
+	private final LinkedHashMap<String, byte[]> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+	public KeyCache(int capacity) {
+		this.capacity = capacity;
+	}
+
+	// null if the key isn't cached
+	public synchronized KeyEnvelope get(String identity) throws IOException {
+		byte[] packed = entries.get(identity);
+		return packed != null ? KeyEnvelope.unpack(packed) : null;
+	}
+
+	public synchronized void put(String identity, KeyEnvelope keys) throws IOException {
+		if(capacity <= 0) {
+			return;
+		}
+		byte[] previous = entries.put(identity, keys.pack());
+		if(previous != null) {
+			Arrays.fill(previous, (byte) 0);
+		}
+
+		// least recently used first
+		Iterator<byte[]> iterator = entries.values().iterator();
+		while(entries.size() > capacity) {
+			Arrays.fill(iterator.next(), (byte) 0);
+			iterator.remove();
+		}
+	}
+
+	public synchronized void clear() {
+		for(byte[] packed : entries.values()) {
+			Arrays.fill(packed, (byte) 0);
+		}
+		entries.clear();
+	}
+}
@@ -0,0 +1,81 @@
+package utl;
+
+import java.io.*;
+import java.util.*;
+
+// everything needed to open one file, packed so it can be wrapped with a single RSA operation:
+// version | algorithm | key | iv | [sender]
+public class KeyEnvelope {
+	private static final byte VERSION = 1;
+
+	private String algorithm;
+	private String key;
+	private String iv;
+	private String sender;
+
+	public KeyEnvelope(String algorithm, String key, String iv, String sender) {
+		this.algorithm = algorithm;
+		this.key = key;
+		this.iv = iv;
+		this.sender = sender;
+	}
+
+	public byte[] pack() throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try(DataOutputStream out = new DataOutputStream(bytes)) {
+			out.writeByte(VERSION);
+			out.writeUTF(algorithm);
+			writeField(out, HexFormat.of().parseHex(key));
+			writeField(out, HexFormat.of().parseHex(iv));
+			out.writeBoolean(sender != null);
+			if(sender != null) {
+				out.writeUTF(sender);
+			}
+		}
+		return bytes.toByteArray();
+	}
+
+	public static KeyEnvelope unpack(byte[] packed) throws IOException {
+		try(DataInputStream in = new DataInputStream(new ByteArrayInputStream(packed))) {
+			if(in.readByte() != VERSION) {
+				throw new IOException("Unsupported key envelope version.");
+			}
+			String algorithm = in.readUTF();
+			byte[] keyBytes = readField(in);
+			byte[] ivBytes = readField(in);
+			String key = HexFormat.of().formatHex(keyBytes);
+			String iv = HexFormat.of().formatHex(ivBytes);
+			Arrays.fill(keyBytes, (byte) 0);
+			String sender = in.readBoolean() ? in.readUTF() : null;
+			return new KeyEnvelope(algorithm, key, iv, sender);
+		}
+	}
+
+	private static void writeField(DataOutputStream out, byte[] field) throws IOException {
+		out.writeByte(field.length);
+		out.write(field);
+		Arrays.fill(field, (byte) 0);
+	}
+
+	private static byte[] readField(DataInputStream in) throws IOException {
+		byte[] field = new byte[in.readUnsignedByte()];
+		in.readFully(field);
+		return field;
+	}
+
+	public String getAlgorithm() {
+		return algorithm;
+	}
+
+	public String getKey() {
+		return key;
+	}
+
+	public String getIV() {
+		return iv;
+	}
+
+	public String getSender() {
+		return sender;
+	}
+}
@@ -0,0 +1,181 @@
+package utl;
+
+import java.util.*;
+import java.util.regex.*;
+
+// file and directory paths (directories end with /) indexed for name search:
+// - a sorted map of paths answers "everything under dir/" as one range
+// - trigrams (and bigrams, for short queries) of the lower case names without .enc point to posting lists
+//   of path ids, a name pattern is narrowed to the paths having every gram of its literal parts, then
+//   matched for real
+// ids only grow so posting lists stay sorted; removed ids are skipped and dropped by the next rebuild
+public class NameIndex implements DirectoryManifest.Listener {
+	private static final int[] NO_IDS = new int[0];
+
+	private List<String> paths = new ArrayList<>();					// id -> path, null once removed
+	private List<String> names = new ArrayList<>();					// id -> name as matched
+	private TreeMap<String, Integer> ids = new TreeMap<>();
+	private Map<Long, int[]> postings = new HashMap<>();			// trigram -> ids, [0] is the count
+	private int removed;
+
+	@Override
+	public synchronized void added(String path) {
+		if(ids.containsKey(path)) {
+			return;
+		}
+		int id = paths.size();
+		String name = displayName(path);
+		paths.add(path);
+		names.add(name);
+		ids.put(path, id);
+		for(long gram : grams(name, false)) {
+			int[] list = postings.getOrDefault(gram, NO_IDS);
+			if(list.length == 0 || list[0] + 1 == list.length) {
+				list = Arrays.copyOf(list, Math.max(4, list.length * 2));
+				postings.put(gram, list);
+			}
+			list[++list[0]] = id;
+		}
+	}
+
+	@Override
+	public synchronized void removed(String path) {
+		Integer id = ids.remove(path);
+		if(id == null) {
+			return;
+		}
+		paths.set(id, null);
+		names.set(id, null);
+		if(++removed > 1024 && removed > ids.size()) {
+			rebuild();
+		}
+	}
+
+	// paths under dir ("" for everywhere) whose name matches the glob (* and ?, case is ignored, .enc
+	// can be left out), sorted. text without wildcards matches anywhere in the name
+	public synchronized List<String> search(String dir, String pattern) {
+		String prefix = dir == null ? "" : dir.replace('\\', '/').replaceAll("^/+|/+$", "");
+		prefix = prefix.isEmpty() ? "" : prefix + "/";
+		String glob = pattern == null || pattern.isBlank() ? "*" : pattern.trim().toLowerCase(Locale.ROOT);
+		if(glob.endsWith(".enc")) {
+			glob = glob.substring(0, glob.length() - 4);
+		}
+		if(glob.indexOf('*') == -1 && glob.indexOf('?') == -1) {
+			glob = "*" + glob + "*";
+		}
+		Pattern regex = Pattern.compile(globToRegex(glob));
+
+		// the rarest gram first, every other list only has to be probed
+		List<int[]> lists = new ArrayList<>();
+		for(String literal : glob.split("[*?]")) {
+			for(long gram : grams(literal, true)) {
+				int[] list = postings.get(gram);
+				if(list == null) {
+					return List.of();
+				}
+				lists.add(list);
+			}
+		}
+
+		// a narrow folder is cheaper to go through than the postings
+		List<String> result = new ArrayList<>();
+		NavigableMap<String, Integer> range = prefix.isEmpty() ? ids : ids.subMap(prefix, false, prefix + Character.MAX_VALUE, false);
+		int limit = lists.isEmpty() || prefix.isEmpty() ? Integer.MAX_VALUE : lists.stream().mapToInt(list -> list[0]).min().getAsInt();
+		if(lists.isEmpty() || !prefix.isEmpty()) {
+			int seen = 0;
+			for(Map.Entry<String, Integer> entry : range.entrySet()) {
+				if(++seen > limit) {
+					break;
+				}
+				if(regex.matcher(names.get(entry.getValue())).matches()) {
+					result.add(entry.getKey());
+				}
+			}
+			if(seen <= limit) {
+				return result;
+			}
+			result.clear();
+		}
+
+		lists.sort(Comparator.comparingInt(list -> list[0]));
+		int[] first = lists.get(0);
+		candidates:
+		for(int i = 1; i <= first[0]; i++) {
+			int id = first[i];
+			String path = paths.get(id);
+			if(path == null || !path.startsWith(prefix) || path.equals(prefix)) {
+				continue;
+			}
+			for(int[] list : lists.subList(1, lists.size())) {
+				if(Arrays.binarySearch(list, 1, list[0] + 1, id) < 0) {
+					continue candidates;
+				}
+			}
+			if(regex.matcher(names.get(id)).matches()) {
+				result.add(path);
+			}
+		}
+		Collections.sort(result);
+		return result;
+	}
+
+	// -------------------------------------------------------------
+
+	private void rebuild() {
+		List<String> live = List.copyOf(ids.keySet());
+		paths = new ArrayList<>();
+		names = new ArrayList<>();
+		ids = new TreeMap<>();
+		postings = new HashMap<>();
+		removed = 0;
+		for(String path : live) {
+			added(path);
+		}
+	}
+
+	// last name of the path in lower case, without / of a directory and .enc of a file
+	private static String displayName(String path) {
+		String name = path.endsWith("/") ? path.substring(0, path.length() - 1) : path;
+		name = name.substring(name.lastIndexOf('/') + 1).toLowerCase(Locale.ROOT);
+		return name.endsWith(".enc") ? name.substring(0, name.length() - 4) : name;
+	}
+
+	// every trigram and bigram of a name; for a query only the trigrams, or the bigram of a two letter text
+	private static long[] grams(String text, boolean query) {
+		int length = text.length();
+		if(query && length >= 3) {
+			length = 0;
+		}
+		long[] grams = new long[Math.max(0, text.length() - 2) + Math.max(0, length - 1)];
+		int count = 0;
+		for(int i = 0; i + 3 <= text.length(); i++) {
+			grams[count++] = ((long) text.charAt(i) << 32) | ((long) text.charAt(i + 1) << 16) | text.charAt(i + 2);
+		}
+		// bigrams are kept apart from trigrams by a bit no char reaches
+		for(int i = 0; i + 2 <= length; i++) {
+			grams[count++] = (1L << 48) | ((long) text.charAt(i) << 16) | text.charAt(i + 1);
+		}
+		Arrays.sort(grams, 0, count);
+		int distinct = 0;
+		for(int i = 0; i < count; i++) {
+			if(distinct == 0 || grams[i] != grams[distinct - 1]) {
+				grams[distinct++] = grams[i];
+			}
+		}
+		return Arrays.copyOf(grams, distinct);
+	}
+
+	private static String globToRegex(String glob) {
+		StringBuilder regex = new StringBuilder();
+		StringBuilder literal = new StringBuilder();
+		for(char c : glob.toCharArray()) {
+			if(c == '*' || c == '?') {
+				regex.append(Pattern.quote(literal.toString())).append(c == '*' ? ".*" : ".");
+				literal.setLength(0);
+			} else {
+				literal.append(c);
+			}
+		}
+		return regex.append(Pattern.quote(literal.toString())).toString();
+	}
+}
@@ -0,0 +1,155 @@
+package utl;
+
+import java.nio.charset.StandardCharsets;
+import java.security.*;
+import java.util.*;
+import java.util.concurrent.*;
+import javax.crypto.*;
+import javax.crypto.spec.*;
+
+import system.EFSystem;
+
+// password hashes: $pbkdf2-sha256$iterations$salt$hash (base64)
+// older users have MD5-crypt hashes ($1$salt$hash, as made by openssl passwd -1), those are still
+// accepted and needsRehash() tells the caller to replace them after a successful login
+// hashing runs on a small fixed pool with a bounded queue so many logins at once can't take every core
+public class PasswordHasher {
+	private static final String PREFIX = "$pbkdf2-sha256$";
+	private static final String MD5_CRYPT_PREFIX = "$1$";
+	private static final int SALT_LENGTH = 16;
+	private static final int HASH_LENGTH = 32;
+
+	private static final int ITERATIONS = (int) EFSystem.pr.getLongProperty("PASSWORD_ITERATIONS", 600000);
+	private static final ThreadPoolExecutor executor;
+	static {
+		int threads = (int) EFSystem.pr.getLongProperty("PASSWORD_THREADS", 0);
+		if(threads <= 0) {
+			threads = Runtime.getRuntime().availableProcessors();
+		}
+		int queue = (int) EFSystem.pr.getLongProperty("PASSWORD_QUEUE", 256);
+		executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(queue), runnable -> {
+			Thread thread = new Thread(runnable, "password-hasher");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	private static final SecureRandom random = new SecureRandom();
+
+	public static String hash(String password) throws Exception{
+		byte[] salt = new byte[SALT_LENGTH];
+		random.nextBytes(salt);
+		byte[] hash = submit(() -> pbkdf2(password, salt, ITERATIONS));
+
+		Base64.Encoder b64 = Base64.getEncoder().withoutPadding();
+		return PREFIX + ITERATIONS + "$" + b64.encodeToString(salt) + "$" + b64.encodeToString(hash);
+	}
+
+	public static boolean verify(String password, String storedHash) throws Exception{
+		if(storedHash == null) {
+			return false;
+		}
+		String[] parts = storedHash.trim().split("\\$");
+
+		if(storedHash.startsWith(PREFIX) && parts.length == 5) {
+			int iterations = Integer.parseInt(parts[2]);
+			Base64.Decoder b64 = Base64.getDecoder();
+			byte[] salt = b64.decode(parts[3]);
+			byte[] expected = b64.decode(parts[4]);
+			return MessageDigest.isEqual(expected, submit(() -> pbkdf2(password, salt, iterations)));
+		}
+		if(storedHash.startsWith(MD5_CRYPT_PREFIX) && parts.length == 4) {
+			String expected = storedHash.trim();
+			return MessageDigest.isEqual(expected.getBytes(StandardCharsets.US_ASCII), submit(() -> md5Crypt(password, parts[2]).getBytes(StandardCharsets.US_ASCII)));
+		}
+		return false;
+	}
+
+	// older scheme or fewer iterations than configured now
+	public static boolean needsRehash(String storedHash) {
+		if(storedHash == null || !storedHash.startsWith(PREFIX)) {
+			return true;
+		}
+		String[] parts = storedHash.split("\\$");
+		return parts.length != 5 || Integer.parseInt(parts[2]) < ITERATIONS;
+	}
+
+	private static byte[] submit(Callable<byte[]> task) throws Exception{
+		Future<byte[]> result;
+		try {
+			result = executor.submit(task);
+		} catch(RejectedExecutionException e) {
+			throw new IllegalStateException("Too many logins at once, try again.");
+		}
+		try {
+			return result.get();
+		} catch(ExecutionException e) {
+			throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+		}
+	}
+
+	private static byte[] pbkdf2(String password, byte[] salt, int iterations) throws Exception{
+		PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, HASH_LENGTH * 8);
+		try {
+			return SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256").generateSecret(spec).getEncoded();
+		} finally {
+			spec.clearPassword();
+		}
+	}
+
+	// -------------------------------------------------------------
+	// MD5-crypt, only for checking hashes of users registered before PBKDF2
+
+	private static final String CRYPT_ALPHABET = "./0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz";
+
+	private static String md5Crypt(String password, String salt) throws Exception{
+		byte[] pw = password.getBytes(StandardCharsets.UTF_8);
+		byte[] saltBytes = salt.substring(0, Math.min(salt.length(), 8)).getBytes(StandardCharsets.US_ASCII);
+
+		MessageDigest alternate = MessageDigest.getInstance("MD5");
+		alternate.update(pw);
+		alternate.update(saltBytes);
+		alternate.update(pw);
+		byte[] sum = alternate.digest();
+
+		MessageDigest md = MessageDigest.getInstance("MD5");
+		md.update(pw);
+		md.update(MD5_CRYPT_PREFIX.getBytes(StandardCharsets.US_ASCII));
+		md.update(saltBytes);
+		for(int left = pw.length; left > 0; left -= 16) {
+			md.update(sum, 0, Math.min(left, 16));
+		}
+		for(int i = pw.length; i != 0; i >>>= 1) {
+			md.update((i & 1) != 0 ? 0 : (pw.length > 0 ? pw[0] : 0));
+		}
+		sum = md.digest();
+
+		for(int i = 0; i < 1000; i++) {
+			md.update((i & 1) != 0 ? pw : sum);
+			if(i % 3 != 0) {
+				md.update(saltBytes);
+			}
+			if(i % 7 != 0) {
+				md.update(pw);
+			}
+			md.update((i & 1) != 0 ? sum : pw);
+			sum = md.digest();
+		}
+		Arrays.fill(pw, (byte) 0);
+
+		StringBuilder out = new StringBuilder(MD5_CRYPT_PREFIX).append(new String(saltBytes, StandardCharsets.US_ASCII)).append('$');
+		int[][] groups = {{0, 6, 12}, {1, 7, 13}, {2, 8, 14}, {3, 9, 15}, {4, 10, 5}};
+		for(int[] group : groups) {
+			appendCrypt64(out, ((sum[group[0]] & 0xff) << 16) | ((sum[group[1]] & 0xff) << 8) | (sum[group[2]] & 0xff), 4);
+		}
+		appendCrypt64(out, sum[11] & 0xff, 2);
+		return out.toString();
+	}
+
+	private static void appendCrypt64(StringBuilder out, int value, int length) {
+		for(int i = 0; i < length; i++) {
+			out.append(CRYPT_ALPHABET.charAt(value & 0x3f));
+			value >>>= 6;
+		}
+	}
+}
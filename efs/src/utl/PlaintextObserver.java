@@ -0,0 +1,19 @@
+package utl;
+
+import java.nio.ByteBuffer;
+import java.security.*;
+
+// sees every plaintext byte, in order, on the same pass that encrypts or decrypts it,
+// so digests don't need a second read of the file
+// implementations must not move the buffer's position
+public interface PlaintextObserver {
+	void update(ByteBuffer plaintext) throws Exception;
+	
+	static PlaintextObserver of(MessageDigest md) {
+		return plaintext -> md.update(plaintext.duplicate());
+	}
+	
+	static PlaintextObserver of(Signature signature) {
+		return plaintext -> signature.update(plaintext.duplicate());
+	}
+}
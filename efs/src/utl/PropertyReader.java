@@ -18,4 +18,13 @@ public class PropertyReader {
 	public String getProperty(String key){
 		return properties.getProperty(key);
 	}
+	
+	public String getProperty(String key, String defaultValue){
+		return properties.getProperty(key, defaultValue);
+	}
+	
+	public long getLongProperty(String key, long defaultValue){
+		String value = properties.getProperty(key);
+		return value == null || value.isBlank() ? defaultValue : Long.parseLong(value.trim());
+	}
 }
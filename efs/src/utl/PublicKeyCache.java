@@ -0,0 +1,49 @@
+package utl;
+
+import java.nio.file.*;
+import java.nio.file.attribute.*;
+import java.security.*;
+import java.security.cert.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+// public keys of users' certificates, parsed once and shared between threads
+// an entry holds the certificate fingerprint (SHA-256 of the DER) and is replaced when the certificate
+// file changes, checking that costs one stat of the file and no reads
+public class PublicKeyCache {
+	private static class Entry {
+		private final Path certPath;
+		private final FileTime certModified;
+		private final String fingerprint;
+		private final PublicKey publicKey;
+
+		private Entry(Path certPath, FileTime certModified, String fingerprint, PublicKey publicKey) {
+			this.certPath = certPath;
+			this.certModified = certModified;
+			this.fingerprint = fingerprint;
+			this.publicKey = publicKey;
+		}
+	}
+
+	private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+
+	public PublicKey get(String username, Path certPath) throws Exception{
+		FileTime certModified = Files.getLastModifiedTime(certPath);
+		Entry entry = entries.get(username);
+		if(entry != null && entry.certPath.equals(certPath) && entry.certModified.equals(certModified)) {
+			return entry.publicKey;
+		}
+
+		X509Certificate cert = KeyUtil.loadCertificate(certPath);
+		String fingerprint = HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(cert.getEncoded()));
+		// touched but not reissued, the parsed key is still good
+		PublicKey publicKey = entry != null && entry.fingerprint.equals(fingerprint) ? entry.publicKey : cert.getPublicKey();
+
+		entries.put(username, new Entry(certPath, certModified, fingerprint, publicKey));
+		return publicKey;
+	}
+
+	public void invalidate(String username) {
+		entries.remove(username);
+	}
+}
@@ -0,0 +1,172 @@
+package utl;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+// names of the shared objects meant for each recipient, so incoming files are listed without trying the
+// user's key on every object in shared. one file per recipient, named by the fingerprint of their public key
+// (EncryptionUtil.fingerprint) rather than by their username
+// inbox: magic | format version | records, record: length (short) | object name (utf-8) | crc32 (int)
+// a record cut short by a crash is dropped by the next add, a damaged one anywhere else fails the read.
+// names whose object is gone are skipped when listing, the inbox is rewritten without them once they
+// outnumber the live ones. <fingerprint>.scanned marks that the shares naming no recipient were tried once
+public class SharedInbox {
+	private static final int COMPACT_MIN_RECORDS = 64;
+
+	private Path dir;
+	private Path sharedDir;
+
+	public SharedInbox(Path dir, Path sharedDir) {
+		this.dir = dir;
+		this.sharedDir = sharedDir;
+	}
+
+	// object names (relative to shared) in the inbox of the fingerprint that still exist, sorted
+	public List<String> list(String fingerprint) throws IOException {
+		List<String> names = new ArrayList<>();
+		read(dir.resolve(fingerprint), names);
+		return names.stream().distinct().filter(name -> Files.exists(sharedDir.resolve(name))).sorted().toList();
+	}
+
+	// puts the object into the inbox of every fingerprint, durable when this returns
+	// (sessions of one process wait on the monitor, other processes on the lock file)
+	public synchronized void add(Collection<String> fingerprints, String objectName) throws IOException {
+		Files.createDirectories(dir);
+		try(FileChannel lockChannel = FileChannel.open(dir.resolve(".lock"), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+			lockChannel.lock();
+			for(String fingerprint : fingerprints) {
+				append(dir.resolve(fingerprint), objectName);
+			}
+		}
+	}
+
+	// changes whenever the inbox of the fingerprint does, null if there is none
+	public String identity(String fingerprint) throws IOException {
+		Path inboxPath = dir.resolve(fingerprint);
+		if(!Files.exists(inboxPath)) {
+			return null;
+		}
+		BasicFileAttributes attributes = Files.readAttributes(inboxPath, BasicFileAttributes.class);
+		return attributes.fileKey() + "|" + attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS) + "|" + attributes.size();
+	}
+
+	// whether the shares that name no recipient were tried with the fingerprint's key already
+	public boolean isScanned(String fingerprint) {
+		return Files.exists(dir.resolve(fingerprint + ".scanned"));
+	}
+
+	public void markScanned(String fingerprint) throws IOException {
+		Files.createDirectories(dir);
+		try {
+			Files.createFile(dir.resolve(fingerprint + ".scanned"));
+		} catch(FileAlreadyExistsException e) {
+			// another session got there first
+		}
+	}
+
+	// -------------------------------------------------------------
+
+	private void append(Path inboxPath, String objectName) throws IOException {
+		List<String> names = new ArrayList<>();
+		long end = read(inboxPath, names);
+		if(end == -1) {
+			writeInbox(inboxPath, List.of(objectName));
+			return;
+		}
+
+		if(names.size() >= COMPACT_MIN_RECORDS) {
+			List<String> live = new ArrayList<>(names.stream().distinct().filter(name -> Files.exists(sharedDir.resolve(name))).toList());
+			if(names.size() > live.size() * 2) {
+				live.add(objectName);
+				writeInbox(inboxPath, live);
+				return;
+			}
+		}
+
+		ByteBuffer buffer = ByteBuffer.wrap(record(objectName));
+		try(FileChannel channel = FileChannel.open(inboxPath, StandardOpenOption.WRITE)) {
+			// cut short by a crash while appending
+			if(channel.size() > end) {
+				channel.truncate(end);
+			}
+			long position = end;
+			while(buffer.hasRemaining()) {
+				position += channel.write(buffer, position);
+			}
+			channel.force(false);
+		}
+	}
+
+	// reads the names of the inbox, returns where its valid part ends or -1 if there's no inbox
+	private static long read(Path inboxPath, List<String> names) throws IOException {
+		if(!Files.exists(inboxPath)) {
+			return -1;
+		}
+
+		long size = Files.size(inboxPath);
+		long position = StorageFormat.HEADER_LENGTH;
+		try(DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(inboxPath)))) {
+			if(StorageFormat.version(in.readNBytes(StorageFormat.HEADER_LENGTH)) != StorageFormat.INBOX) {
+				throw new IOException(inboxPath.getFileName() + " is not an inbox.");
+			}
+
+			while(true) {
+				byte[] name;
+				try {
+					name = new byte[in.readUnsignedShort()];
+					in.readFully(name);
+					CRC32 crc = new CRC32();
+					crc.update(name);
+					if(in.readInt() != (int) crc.getValue()) {
+						// only the last record can be a torn append. an inbox can't be rebuilt from anything,
+						// so a bad record with more after it fails the read and the inbox is left alone
+						if(position + 2 + name.length + 4 != size) {
+							throw new IOException(inboxPath.getFileName() + " is damaged at byte " + position + ", it was left as it is.");
+						}
+						break;
+					}
+				} catch(EOFException e) {
+					break;
+				}
+				names.add(new String(name, StandardCharsets.UTF_8));
+				position += 2 + name.length + 4;
+			}
+		}
+		return position;
+	}
+
+	private static void writeInbox(Path inboxPath, List<String> names) throws IOException {
+		Path tmpPath = inboxPath.resolveSibling(inboxPath.getFileName() + ".tmp");
+		try(FileChannel channel = FileChannel.open(tmpPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+			OutputStream out = new BufferedOutputStream(Channels.newOutputStream(channel))) {
+			out.write(StorageFormat.header(StorageFormat.INBOX));
+			for(String name : names) {
+				out.write(record(name));
+			}
+			out.flush();
+			channel.force(true);
+		}
+		Files.move(tmpPath, inboxPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private static byte[] record(String name) throws IOException {
+		byte[] data = name.getBytes(StandardCharsets.UTF_8);
+		CRC32 crc = new CRC32();
+		crc.update(data);
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try(DataOutputStream out = new DataOutputStream(bytes)) {
+			out.writeShort(data.length);
+			out.write(data);
+			out.writeInt((int) crc.getValue());
+		}
+		return bytes.toByteArray();
+	}
+}
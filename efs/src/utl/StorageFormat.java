@@ -0,0 +1,56 @@
+package utl;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+
+// binary files written by EFS start with MAGIC followed by a one byte format version,
+// files without it are in the original base64/text formats produced through openssl
+public class StorageFormat {
+	public static final byte[] MAGIC = {'E', 'F', 'S', 0};
+	public static final int HEADER_LENGTH = MAGIC.length + 1;
+
+	public static final byte CHUNKED_GCM = 1;		// .enc
+	public static final byte BINARY_METADATA = 2;	// .meta
+	public static final byte BINARY_SIGNATURE = 3;	// .sgn
+	public static final byte OBJECT = 4;			// .enc with metadata and signature in front (EFSObject)
+	public static final byte USER_LOG = 5;			// users.log (UserStore)
+	public static final byte MANIFEST = 6;			// .manifest of a home directory (DirectoryManifest)
+	public static final byte CHUNK_LIST = 7;		// payload of a deduplicated object (ChunkStore)
+	public static final byte CHUNK = 8;				// one chunk in a chunk store
+	public static final byte CHUNK_STORE = 9;		// refs.log of a chunk store
+	public static final byte INBOX = 10;			// incoming shared files of one recipient (SharedInbox)
+
+	public static byte[] header(byte version) {
+		byte[] header = Arrays.copyOf(MAGIC, HEADER_LENGTH);
+		header[MAGIC.length] = version;
+		return header;
+	}
+
+	// format version of the data, or -1 for the old base64/text formats
+	public static int version(byte[] data) {
+		if(data.length < HEADER_LENGTH || !Arrays.equals(data, 0, MAGIC.length, MAGIC, 0, MAGIC.length)) {
+			return -1;
+		}
+		return data[MAGIC.length];
+	}
+
+	public static int version(Path filePath) throws IOException {
+		return version(filePath, 0);
+	}
+
+	// format version of data starting at offset inside the file
+	public static int version(Path filePath, long offset) throws IOException {
+		try(FileChannel channel = FileChannel.open(filePath, StandardOpenOption.READ)) {
+			ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+			while(header.hasRemaining()) {
+				if(channel.read(header, offset + header.position()) == -1) {
+					break;
+				}
+			}
+			return version(Arrays.copyOf(header.array(), header.position()));
+		}
+	}
+}